@@ -0,0 +1,213 @@
+package org.example;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * AdminServer exposes a small HTTP admin endpoint so monitoring can run out
+ * of process. Responses are plain text, one item per line.
+ *
+ * <pre>
+ * GET  /stats            clients, resident bytes, batching/dedupe metrics, rooms
+ * GET  /rooms            active rooms
+ * GET  /logs             recent log lines
+ * GET  /events           stream of ServerStats events (one line each, see Event.toLine)
+ * POST /backup           run MessageHelper.backupHistory()
+ * POST /compact          seal the active history log into a compressed segment
+ * POST /evict?room=NAME  drop an idle room from memory
+ * </pre>
+ *
+ * POSTs must carry the shared token (-Ddschat.admin.token) in the
+ * {@value #TOKEN_HEADER} header. Without a token they are only accepted
+ * while the endpoint is bound to a loopback address. On a non-loopback bind
+ * the GETs need the token too, since logs and events carry chat messages.
+ */
+public class AdminServer {
+    public static final String TOKEN_HEADER = "X-Admin-Token";
+
+    private final DataStore store;
+    private final String host;
+    private final int port;
+    private final String token;
+    private HttpServer http;
+
+    /** @param token shared secret required on POSTs, or null to allow them on loopback only */
+    public AdminServer(DataStore store, String host, int port, String token) {
+        this.store = store;
+        this.host = host;
+        this.port = port;
+        this.token = token == null || token.isEmpty() ? null : token;
+    }
+
+    public void start() throws IOException {
+        InetSocketAddress addr = new InetSocketAddress(host, port);
+        http = HttpServer.create(addr, 0);
+        boolean loopback = addr.getAddress() != null && addr.getAddress().isLoopbackAddress();
+        // /events 会长期占用一个线程，使用可伸缩的守护线程池
+        ExecutorService pool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "AdminHttp");
+            t.setDaemon(true);
+            return t;
+        });
+        http.setExecutor(pool);
+        http.createContext("/stats", ex -> {
+            if (!requireMethod(ex, "GET") || !requireReadToken(ex, loopback)) return;
+            respond(ex, 200, "clients=" + ServerStats.getActiveClientCount() + "\n"
+                    + "residentBytes=" + store.residentBytes() + "\n"
+                    + "broadcastBatching=" + ServerStats.getBatchStats() + "\n"
+                    + "sendDedupe=" + ServerStats.getDedupeStats() + "\n"
+                    + "rooms=" + String.join(",", ServerStats.getActiveRooms()) + "\n");
+        });
+        http.createContext("/rooms", ex -> {
+            if (!requireMethod(ex, "GET") || !requireReadToken(ex, loopback)) return;
+            respond(ex, 200, lines(ServerStats.getActiveRooms()));
+        });
+        http.createContext("/logs", ex -> {
+            if (!requireMethod(ex, "GET") || !requireReadToken(ex, loopback)) return;
+            respond(ex, 200, lines(ServerStats.getRecentLogs()));
+        });
+        http.createContext("/events", ex -> streamEvents(ex, loopback));
+        http.createContext("/backup", ex -> {
+            if (!requireMethod(ex, "POST") || !requireToken(ex, loopback)) return;
+            try {
+                MessageHelper.backupHistory();
+                ServerStats.addLog("[Admin] Manual backup triggered.");
+                respond(ex, 200, "OK\n");
+            } catch (IOException e) {
+                respond(ex, 500, "Backup failed: " + e.getMessage() + "\n");
+            }
+        });
+        http.createContext("/compact", ex -> {
+            if (!requireMethod(ex, "POST") || !requireToken(ex, loopback)) return;
+            try {
+                boolean sealed = MessageHelper.compactHistory();
+                ServerStats.addLog("[Admin] Compaction " + (sealed ? "sealed a new segment." : "had nothing to seal."));
+                respond(ex, 200, sealed ? "OK\n" : "NOTHING_TO_COMPACT\n");
+            } catch (IOException e) {
+                respond(ex, 500, "Compaction failed: " + e.getMessage() + "\n");
+            }
+        });
+        http.createContext("/evict", ex -> {
+            if (!requireMethod(ex, "POST") || !requireToken(ex, loopback)) return;
+            String room = queryParam(ex, "room");
+            if (room == null || room.isEmpty()) {
+                respond(ex, 400, "Usage: POST /evict?room=NAME\n");
+            } else if (Server.hasRoom(room)) {
+                // 仍有在线客户端的房间不允许驱逐，避免与正在进行的写入交错
+                respond(ex, 409, "Room has connected clients: " + room + "\n");
+            } else {
+                boolean evicted = store.evictRoom(room);
+                if (evicted) ServerStats.addLog("[Admin] Evicted room " + room);
+                respond(ex, evicted ? 200 : 404, (evicted ? "OK" : "NOT_RESIDENT") + "\n");
+            }
+        });
+        http.start();
+        String msg = "AdminServer listening on http://" + host + ":" + port;
+        System.out.println(msg);
+        ServerStats.addLog(msg);
+        if (token == null && !loopback) {
+            String warn = "[AdminServer] No dschat.admin.token set: the admin endpoint is disabled on " + host;
+            System.err.println(warn);
+            ServerStats.addLog(warn);
+        }
+    }
+
+    public void stop() {
+        if (http != null) http.stop(0);
+    }
+
+    /** Chunked stream of events until the client goes away */
+    private void streamEvents(HttpExchange ex, boolean loopback) throws IOException {
+        if (!requireMethod(ex, "GET") || !requireReadToken(ex, loopback)) return;
+        ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        ex.sendResponseHeaders(200, 0);
+        ServerStats.Subscription sub = ServerStats.subscribe();
+        try (OutputStream out = ex.getResponseBody()) {
+            while (true) {
+                ServerStats.Event e;
+                boolean wrote = false;
+                while ((e = sub.poll()) != null) {
+                    out.write((e.toLine() + "\n").getBytes(StandardCharsets.UTF_8));
+                    wrote = true;
+                }
+                if (wrote) {
+                    out.flush();
+                } else {
+                    Thread.sleep(100);
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // 客户端断开
+        } finally {
+            sub.close();
+        }
+    }
+
+    private static boolean requireMethod(HttpExchange ex, String method) throws IOException {
+        if (!method.equalsIgnoreCase(ex.getRequestMethod())) {
+            respond(ex, 405, "Use " + method + "\n");
+            return false;
+        }
+        return true;
+    }
+
+    /** Mutating endpoints need the shared token; without one they only work on a loopback bind */
+    private boolean requireToken(HttpExchange ex, boolean loopback) throws IOException {
+        if (token == null) {
+            if (loopback) return true;
+            respond(ex, 403, "The admin endpoint needs -Ddschat.admin.token on a non-loopback host\n");
+            return false;
+        }
+        String given = ex.getRequestHeaders().getFirst(TOKEN_HEADER);
+        // 常量时间比较，避免按响应时间逐字节猜测令牌
+        if (given == null || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+                given.getBytes(StandardCharsets.UTF_8))) {
+            respond(ex, 401, "Missing or wrong " + TOKEN_HEADER + "\n");
+            return false;
+        }
+        return true;
+    }
+
+    /** Read endpoints are open on a loopback bind; elsewhere they need the token like the commands */
+    private boolean requireReadToken(HttpExchange ex, boolean loopback) throws IOException {
+        return loopback || requireToken(ex, false);
+    }
+
+    private static String queryParam(HttpExchange ex, String name) {
+        String query = ex.getRequestURI().getRawQuery();
+        if (query == null) return null;
+        for (String pair : query.split("&")) {
+            String[] kv = pair.split("=", 2);
+            if (kv.length == 2 && kv[0].equals(name)) {
+                return URLDecoder.decode(kv[1], StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private static String lines(List<String> items) {
+        StringBuilder sb = new StringBuilder();
+        for (String item : items) sb.append(item).append('\n');
+        return sb.toString();
+    }
+
+    private static void respond(HttpExchange ex, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.example;
+
+import java.io.IOException;
+
+/**
+ * BlockCodec compresses whole blocks of history lines (a log segment block,
+ * a backup block or a replication batch).
+ */
+public interface BlockCodec {
+
+    /** Name written into file/stream headers so readers pick the same codec */
+    String name();
+
+    byte[] compress(byte[] raw);
+
+    byte[] decompress(byte[] data, int rawLength) throws IOException;
+
+    /** Identity codec, used when compression is switched off */
+    BlockCodec NONE = new BlockCodec() {
+        @Override public String name() { return "none"; }
+        @Override public byte[] compress(byte[] raw) { return raw; }
+        @Override public byte[] decompress(byte[] data, int rawLength) { return data; }
+    };
+
+    /** Look up a codec by its header name */
+    static BlockCodec forName(String name) throws IOException {
+        switch (name) {
+            case "deflate": return new DeflateCodec();
+            case "none":    return NONE;
+            default: throw new IOException("Unknown codec: " + name);
+        }
+    }
+
+    /** Codec chosen by -Ddschat.codec=deflate|none (default: deflate) */
+    static BlockCodec configured() {
+        return "none".equalsIgnoreCase(System.getProperty("dschat.codec", "deflate"))
+                ? NONE : new DeflateCodec();
+    }
+}
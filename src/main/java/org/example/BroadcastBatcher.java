@@ -0,0 +1,169 @@
+package org.example;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * BroadcastBatcher coalesces messages for a busy room and writes them to
+ * each recipient as one print + flush, instead of one flushed println per
+ * message per recipient.
+ *
+ * A room that has been quiet for longer than the window is sent immediately,
+ * so only bursty rooms pay the batching delay. A batch is flushed when the
+ * window expires, when it reaches maxMessages, or as soon as its oldest
+ * message has waited maxDelay (the latency SLO guard).
+ *
+ * Taking a room's batch and writing it happen under that room's delivery
+ * lock, so consecutive batches of a room never overtake each other. The
+ * timer thread only hands expired windows to a pool of flush threads, so a
+ * slow recipient holds up its own room rather than every room.
+ */
+public class BroadcastBatcher {
+    private final Function<String, Iterable<PrintWriter>> recipients;
+    private final long windowNanos;
+    private final long maxDelayNanos;
+    private final int maxMessages;
+    private final ConcurrentHashMap<String, RoomBatch> batches = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "BroadcastBatcher");
+        t.setDaemon(true);
+        return t;
+    });
+    // 定时刷新在这里执行（阻塞写），计时线程本身从不写套接字
+    private final ExecutorService flushers = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "BroadcastFlush");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static class Pending {
+        final String line;
+        final PrintWriter exclude;
+        final long enqueuedAt;
+        Pending(String line, PrintWriter exclude, long enqueuedAt) {
+            this.line = line;
+            this.exclude = exclude;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private static class RoomBatch {
+        List<Pending> pending = new ArrayList<>();
+        long lastMessageAt;
+        boolean scheduled;
+        // 取批与投递都在这把锁内：同一房间的批次按顺序写出，不会交错
+        final Object delivery = new Object();
+
+        List<Pending> take() {
+            List<Pending> batch = pending;
+            pending = new ArrayList<>();
+            return batch;
+        }
+    }
+
+    public BroadcastBatcher(Function<String, Iterable<PrintWriter>> recipients,
+                            long windowMillis, long maxDelayMillis, int maxMessages) {
+        this.recipients = recipients;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        this.windowNanos = Math.min(TimeUnit.MILLISECONDS.toNanos(windowMillis), maxDelayNanos);
+        this.maxMessages = maxMessages;
+    }
+
+    public void submit(String room, String line, PrintWriter exclude) {
+        RoomBatch b = batches.computeIfAbsent(room, r -> new RoomBatch());
+        boolean flushNow = false;
+        long now = System.nanoTime();
+        synchronized (b) {
+            boolean cold = now - b.lastMessageAt > windowNanos;
+            b.lastMessageAt = now;
+            b.pending.add(new Pending(line, exclude, now));
+            if (cold && b.pending.size() == 1) {
+                // 冷房间：不引入额外延迟
+                flushNow = true;
+            } else if (b.pending.size() >= maxMessages
+                    || now - b.pending.get(0).enqueuedAt >= maxDelayNanos) {
+                flushNow = true;
+            } else if (!b.scheduled) {
+                b.scheduled = true;
+                timer.schedule(() -> flushers.execute(() -> flush(room, b, true)), windowNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (flushNow) {
+            flush(room, b, false);
+        }
+    }
+
+    /** Drop per-room state once a room has no recipients left */
+    public void forget(String room) {
+        RoomBatch b = batches.remove(room);
+        if (b != null) {
+            flush(room, b, false);
+        }
+    }
+
+    /** Take whatever the room has pending and deliver it, in order with the room's other batches */
+    private void flush(String room, RoomBatch b, boolean timed) {
+        synchronized (b.delivery) {
+            List<Pending> batch;
+            synchronized (b) {
+                if (timed) {
+                    b.scheduled = false;
+                }
+                batch = b.take();
+            }
+            if (!batch.isEmpty()) {
+                deliver(room, batch);
+            }
+        }
+    }
+
+    private void deliver(String room, List<Pending> batch) {
+        ChatEvents.Broadcast event = new ChatEvents.Broadcast();
+        event.begin();
+        int delivered = 0;
+        int size = 0;
+        Iterable<PrintWriter> peers = recipients.apply(room);
+        if (peers != null) {
+            StringBuilder sb = new StringBuilder();
+            for (PrintWriter peer : peers) {
+                sb.setLength(0);
+                for (Pending p : batch) {
+                    if (p.exclude != peer) {
+                        sb.append(p.line).append(System.lineSeparator());
+                    }
+                }
+                if (sb.length() > 0) {
+                    // 一次写入 + 一次 flush
+                    peer.print(sb);
+                    peer.flush();
+                    delivered++;
+                    size = Math.max(size, sb.length());
+                }
+            }
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.room = room;
+            event.recipients = delivered;
+            event.messages = batch.size();
+            event.size = size;
+            event.commit();
+        }
+        long now = System.nanoTime();
+        long added = 0;
+        long maxAdded = 0;
+        for (Pending p : batch) {
+            long wait = now - p.enqueuedAt;
+            added += wait;
+            maxAdded = Math.max(maxAdded, wait);
+        }
+        ServerStats.recordBatch(batch.size(), added, maxAdded);
+    }
+}
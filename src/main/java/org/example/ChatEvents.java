@@ -0,0 +1,116 @@
+package org.example;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events for the chat hot paths. They cost next to
+ * nothing unless a recording is running, e.g.
+ * {@code -XX:StartFlightRecording:filename=dschat.jfr,settings=profile}.
+ * Per-message events default to a 1 ms threshold so a continuous recording
+ * keeps only the slow ones; lower the threshold in a .jfc file to capture
+ * all of them. Stack traces are off: duration plus the fields identify the
+ * path.
+ */
+public final class ChatEvents {
+    private ChatEvents() {
+    }
+
+    @Name("dschat.Command")
+    @Label("Command")
+    @Category("DSChat")
+    @Description("One client command read and handled (dispatch only when rooms are sharded)")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static class Command extends Event {
+        @Label("Command")
+        public String command;
+        @Label("Room")
+        public String room;
+        @Label("Size")
+        @DataAmount
+        public int size;
+    }
+
+    @Name("dschat.Broadcast")
+    @Label("Broadcast")
+    @Category("DSChat")
+    @Description("Fan-out of one message, or one micro-batch, to a room")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static class Broadcast extends Event {
+        @Label("Room")
+        public String room;
+        @Label("Recipients")
+        public int recipients;
+        @Label("Messages")
+        public int messages;
+        @Label("Size")
+        @DataAmount
+        public int size;
+    }
+
+    @Name("dschat.Persist")
+    @Label("Persist Message")
+    @Category("DSChat")
+    @Description("MessageHelper.appendMessage, including the wait for the log lock")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static class Persist extends Event {
+        @Label("Room")
+        public String room;
+        @Label("Size")
+        @DataAmount
+        public int size;
+    }
+
+    @Name("dschat.Backup")
+    @Label("History Backup")
+    @Category("DSChat")
+    @StackTrace(false)
+    public static class Backup extends Event {
+        @Label("File")
+        public String file;
+        @Label("Rooms")
+        public int rooms;
+        @Label("Size")
+        @DataAmount
+        public long size;
+    }
+
+    @Name("dschat.LockWait")
+    @Label("DataStore Lock Wait")
+    @Category("DSChat")
+    @Description("Time blocked on the DataStore lock; waits below the threshold are not recorded")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    public static class LockWait extends Event {
+        @Label("Mode")
+        public String mode;
+        @Label("Room")
+        public String room;
+    }
+
+    @Name("dschat.ReplicaSend")
+    @Label("Replica Send")
+    @Category("DSChat")
+    @Description("One batch written to a follower")
+    @StackTrace(false)
+    public static class ReplicaSend extends Event {
+        @Label("Target")
+        public String target;
+        @Label("Messages")
+        public int messages;
+        @Label("Pending")
+        @Description("Entries still queued for this follower after the batch")
+        public int pending;
+        @Label("Reconnect")
+        public boolean reconnect;
+    }
+}
@@ -1,11 +1,14 @@
 package org.example;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.geometry.Insets;
+import javafx.geometry.Orientation;
 import javafx.geometry.Pos;
+import javafx.scene.Node;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
@@ -14,18 +17,41 @@ import javafx.scene.layout.*;
 import javafx.stage.Stage;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.URL;
-import java.util.LinkedHashMap;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class ClientGUI extends Application {
     public static class ChatMessage {
         public final String sender, content;
+        public long id;   // 服务端消息 id，0 表示未知（系统消息 / 尚未 ACK）
+        public long clientId; // 自己发送的消息的客户端 id，用于服务端去重
         public ChatMessage(String s, String c) { sender = s; content = c; }
+        public ChatMessage(long id, String s, String c) { this(s, c); this.id = id; }
+    }
+
+    /** 一页历史（HIST...HISTEND，或断线续传的 HIST...RESUMED） */
+    private static class HistoryPage {
+        final List<ChatMessage> items;
+        final boolean hasMore, resume;
+        HistoryPage(List<ChatMessage> items, boolean hasMore, boolean resume) {
+            this.items = items; this.hasMore = hasMore; this.resume = resume;
+        }
     }
 
     private ListView<ChatMessage> messageList;
@@ -33,9 +59,17 @@ public class ClientGUI extends Application {
     private Button sendButton;
 
     private String myUsername, room;
-    private PrintWriter out;
+    private volatile PrintWriter out;
     private BufferedReader in;
-    private Socket socket;
+    private volatile Closeable socket;   // Socket 或 TlsChannel
+    private volatile boolean stopping;
+    private volatile long lastSeenId;   // 连续收到的最大 id，仅读线程写入
+    private final TreeSet<Long> seenAhead = new TreeSet<>(); // 仅读线程：lastSeenId 之后、前面还有空洞的 id
+    private static final int MAX_SEEN_AHEAD = 4096;
+    private boolean resuming, joining;  // 仅读线程使用
+    private final List<ChatMessage> held = new ArrayList<>();
+    private static final long RECONNECT_BASE_MS = 500;
+    private static final long RECONNECT_MAX_MS = 30_000;
 
     // >>>> 头像资源列表 & 映射表
     private final List<String> avatarPaths = List.of(
@@ -45,7 +79,27 @@ public class ClientGUI extends Application {
         "/avatars/avatar4.png"
     );
     private final String defaultAvatar = "/avatars/default.png";
-    private final Map<String,String> avatarMap = new LinkedHashMap<>();
+    private final Map<String,String> avatarMap = new ConcurrentHashMap<>();
+    // 解码后的头像缓存（仅 FX 线程访问）；缺失资源记为 null
+    private final Map<String,Image> avatarCache = new HashMap<>();
+
+    // >>>> 渲染管线：读线程只入队，FX 线程每帧合并处理一次
+    private static final int MAX_ITEMS = 500;
+    private static final int PAGE_SIZE = 50;
+    private final ConcurrentLinkedQueue<ChatMessage> incoming = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<HistoryPage> pages = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<long[]> acks = new ConcurrentLinkedQueue<>(); // {serverId, clientId}
+    // 客户端消息 id：随机会话前缀 + 递增序号，重发时复用同一个 id
+    private final long clientIdBase = new SecureRandom().nextLong() & 0xFFFFFFFF00000000L;
+    private long clientIdSeq;
+    private List<ChatMessage> pageBuffer = new ArrayList<>();     // 仅读线程
+    private final Deque<ChatMessage> awaitingAck = new ArrayDeque<>(); // 以下仅 FX 线程
+    private long oldestId, newestId;
+    // 已显示或已确认的消息 id：按实际 id 去重，而不是按最大 id 丢弃较小的 id
+    private final Set<Long> shownIds = new LinkedHashSet<>();
+    private boolean hasOlder, detached, pageInFlight;
+    private String pageDirection;
+    private AnimationTimer pump;
 
     @Override
     public void start(Stage stage) {
@@ -82,85 +136,347 @@ public class ClientGUI extends Application {
         stage.setTitle("Room: " + room + " — " + myUsername);
         stage.setScene(scene);
         stage.show();
+        watchScroll();
+
+        pump = new AnimationTimer() {
+            @Override public void handle(long now) { drain(); }
+        };
+        pump.start();
 
         // 3. 连接 & JOIN
         connectAndJoin();
     }
 
     private void connectAndJoin() {
-        new Thread(() -> {
+        Thread connector = new Thread(this::connectLoop, "Connector");
+        connector.setDaemon(true);
+        connector.start();
+    }
+
+    /**
+     * 连接、JOIN/RESUME 并读取服务端消息；断线后按指数退避 + 全抖动重连，
+     * 重连时只请求 lastSeenId 之后错过的消息。
+     */
+    private void connectLoop() {
+        int attempt = 0;
+        while (!stopping) {
             try {
-                socket = new Socket("localhost", 9999);
-                out    = new PrintWriter(socket.getOutputStream(), true);
-                in     = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-                // 发送 JOIN
-                out.println("JOIN " + room + " " + myUsername);
-
-                // 统一 Reader 线程
-                Thread reader = new Thread(() -> {
-                    try {
-                        String line;
-                        while ((line = in.readLine()) != null) {
-                            final String msg = line;
-                            System.out.println("<< " + msg);
-
-                            // >>>> 处理服务端分配的 avatarId
-                            if (msg.startsWith("USERJOIN|")) {
-                                String[] p = msg.split("\\|", 3);
-                                String user = p[1];
-                                int avatarId = Integer.parseInt(p[2]);
-                                String path = avatarId < avatarPaths.size()
-                                    ? avatarPaths.get(avatarId)
-                                    : defaultAvatar;
-                                avatarMap.put(user, path);
-
-                                Platform.runLater(() ->
-                                    messageList.getItems().add(new ChatMessage("System", user + " joined"))
-                                );
-                            }
-                            // 普通聊天 username|content
-                            else if (msg.contains("|")) {
-                                String[] p2 = msg.split("\\|", 2);
-                                Platform.runLater(() ->
-                                    messageList.getItems().add(new ChatMessage(p2[0], p2[1]))
-                                );
-                            }
-                            // 其他系统消息
-                            else {
-                                Platform.runLater(() ->
-                                    messageList.getItems().add(new ChatMessage("System", msg))
-                                );
-                            }
-                        }
-                    } catch (Exception ex) {
-                        Platform.runLater(() ->
-                            messageList.getItems().add(new ChatMessage("System", "Disconnected"))
-                        );
-                    }
-                }, "ServerReader");
-                reader.setDaemon(true);
-                reader.start();
+                // 配置了 dschat.tls.truststore（或 keystore）时使用 TLS，重连复用同一 SSLContext 以恢复会话
+                if (TlsChannel.clientEnabled()) {
+                    TlsChannel tls = TlsChannel.connect("localhost", 9999);
+                    socket = tls;
+                    out    = new PrintWriter(tls.getOutputStream(), true);
+                    in     = new BufferedReader(new InputStreamReader(tls.getInputStream()));
+                } else {
+                    Socket plain = new Socket("localhost", 9999);
+                    socket = plain;
+                    out    = new PrintWriter(plain.getOutputStream(), true);
+                    in     = new BufferedReader(new InputStreamReader(plain.getInputStream()));
+                }
+                pageBuffer = new ArrayList<>();
+
+                long resumeFrom = lastSeenId;
+                resuming = resumeFrom > 0;
+                joining = !resuming;
+                held.clear();
+                if (resuming) {
+                    out.println("RESUME " + room + " " + resumeFrom + " " + myUsername);
+                    // 重发尚未确认的消息（同一客户端 id，服务端去重）
+                    Platform.runLater(this::resendPending);
+                } else {
+                    out.println("JOIN " + room + " " + myUsername);
+                }
 
+                String line;
+                while ((line = in.readLine()) != null) {
+                    attempt = 0;
+                    handleLine(line);
+                }
             } catch (Exception e) {
-                Platform.runLater(() ->
-                    new Alert(Alert.AlertType.ERROR, "Connection error: " + e.getMessage())
-                        .showAndWait()
-                );
+                if (!stopping) {
+                    incoming.add(new ChatMessage("System", "Connection error: " + e.getMessage()));
+                }
             }
-        }, "Connector").start();
+            if (stopping) return;
+
+            long ceiling = Math.min(RECONNECT_MAX_MS, RECONNECT_BASE_MS << Math.min(attempt, 16));
+            long delay = ThreadLocalRandom.current().nextLong(ceiling + 1);
+            attempt++;
+            incoming.add(new ChatMessage("System", "Disconnected, reconnecting in " + delay + " ms"));
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void handleLine(String msg) {
+        // 带 id 的聊天消息 MSG|id|username|content
+        if (msg.startsWith("MSG|")) {
+            String[] p = msg.split("\\|", 4);
+            long id = Long.parseLong(p[1]);
+            seen(id);
+            // 续传页到齐之前先暂存实时消息，避免其 id 抢先推进 newestId 使补发的消息被跳过
+            (resuming ? held : incoming).add(new ChatMessage(id, p[2], p[3]));
+        }
+        // 自己发送的消息被分配的 id
+        else if (msg.startsWith("ACK|")) {
+            String[] p = msg.split("\\|", 3);
+            long cid = p.length == 3 ? Long.parseUnsignedLong(p[2], 16) : 0;
+            long id = Long.parseLong(p[1]);
+            seen(id);
+            acks.add(new long[] {id, cid});
+        }
+        // 历史页 HIST|id|timestamp|sender|text ... HISTEND|room|n|hasMore（RESUMED 为续传结束）
+        else if (msg.startsWith("HIST|")) {
+            String[] p = msg.split("\\|", 5);
+            long id = Long.parseLong(p[1]);
+            seen(id);
+            pageBuffer.add(new ChatMessage(id, p[3], p[4]));
+        }
+        else if (msg.startsWith("HISTEND|") || msg.startsWith("RESUMED|")) {
+            String[] p = msg.split("\\|", 4);
+            boolean resumed = msg.startsWith("RESUMED|");
+            if (joining) {
+                // JOIN 的首页只含最近几条：更早的消息不算缺失，续传起点从页内最新的 id 开始
+                joining = false;
+                if (!pageBuffer.isEmpty()) {
+                    skipTo(pageBuffer.get(pageBuffer.size() - 1).id);
+                }
+            }
+            pages.add(new HistoryPage(pageBuffer, Boolean.parseBoolean(p[3]), resumed));
+            pageBuffer = new ArrayList<>();
+            if (resumed) {
+                resuming = false;
+                incoming.addAll(held);
+                held.clear();
+            }
+        }
+        // >>>> 处理服务端分配的 avatarId
+        else if (msg.startsWith("USERJOIN|")) {
+            String[] p = msg.split("\\|", 3);
+            String user = p[1];
+            int avatarId = Integer.parseInt(p[2]);
+            String path = avatarId < avatarPaths.size()
+                ? avatarPaths.get(avatarId)
+                : defaultAvatar;
+            avatarMap.put(user, path);
+            incoming.add(new ChatMessage("System", user + " joined"));
+        }
+        // 旧格式聊天 username|content
+        else if (msg.contains("|")) {
+            String[] p2 = msg.split("\\|", 2);
+            incoming.add(new ChatMessage(p2[0], p2[1]));
+        }
+        // 其他系统消息
+        else {
+            incoming.add(new ChatMessage("System", msg));
+        }
+    }
+
+    /**
+     * 记录收到的消息 id（含自己消息的 ACK）。lastSeenId 只推进到连续收到的
+     * 最大 id，重连时从第一个空洞续传，断线时仍在途中的较小 id 也会补发。
+     */
+    private void seen(long id) {
+        if (id <= lastSeenId) return;
+        seenAhead.add(id);
+        // 空洞一直补不上（例如续传被截断后没有翻页）时放弃最早的空洞，避免集合无限增长
+        long next = seenAhead.size() > MAX_SEEN_AHEAD ? seenAhead.first() - 1 : lastSeenId;
+        advance(next);
+    }
+
+    /** 把续传起点直接移到 {@code id}（不早于当前值） */
+    private void skipTo(long id) {
+        if (id <= lastSeenId) return;
+        seenAhead.headSet(id, true).clear();
+        advance(id);
+    }
+
+    private void advance(long from) {
+        long next = from;
+        while (!seenAhead.isEmpty() && seenAhead.first() <= next + 1) {
+            next = Math.max(next, seenAhead.pollFirst());
+        }
+        lastSeenId = next;
+    }
+
+    /** 重连后：重置翻页状态并重发未确认的消息 */
+    private void resendPending() {
+        pageInFlight = false;
+        pageDirection = null;
+        PrintWriter w = out;
+        for (ChatMessage mine : awaitingAck) {
+            w.println("SEND#" + Long.toHexString(mine.clientId) + " " + room + " " + mine.content);
+        }
     }
 
     private void send() {
         String txt = inputField.getText().trim();
         if (txt.isEmpty() || out == null) return;
-        messageList.getItems().add(new ChatMessage(myUsername, txt));
+        ChatMessage mine = new ChatMessage(myUsername, txt);
+        messageList.getItems().add(mine);
+        mine.clientId = clientIdBase | (++clientIdSeq & 0xFFFFFFFFL);
+        awaitingAck.add(mine);
+        trimTop();
         inputField.clear();
-        out.println("SEND " + room + " " + txt);
+        out.println("SEND#" + Long.toHexString(mine.clientId) + " " + room + " " + txt);
+    }
+
+    /** FX 线程每帧调用一次：合并本帧收到的全部消息，只触发一次列表更新 */
+    private void drain() {
+        HistoryPage page;
+        while ((page = pages.poll()) != null) {
+            applyPage(page);
+        }
+        long[] ack;
+        while ((ack = acks.poll()) != null) {
+            ChatMessage mine = null;
+            for (ChatMessage m : awaitingAck) {
+                if (ack[1] == 0 || m.clientId == ack[1]) { mine = m; break; }
+            }
+            if (mine != null) {
+                awaitingAck.remove(mine);
+                mine.id = ack[0];
+                markShown(ack[0]);
+                newestId = Math.max(newestId, ack[0]);
+            }
+        }
+        List<ChatMessage> batch = new ArrayList<>();
+        ChatMessage m;
+        while ((m = incoming.poll()) != null) {
+            if (m.id > 0) {
+                // 正在浏览旧历史时不追加实时消息，回到底部时按 AFTER 补齐；已显示的 id 跳过
+                if (detached || !markShown(m.id)) continue;
+                newestId = Math.max(newestId, m.id);
+            }
+            batch.add(m);
+        }
+        if (!batch.isEmpty()) {
+            messageList.getItems().addAll(batch);
+            trimTop();
+        }
+    }
+
+    private void applyPage(HistoryPage page) {
+        boolean after = page.resume || "AFTER".equals(pageDirection);
+        if (!page.resume) {
+            pageInFlight = false;
+            pageDirection = null;
+        }
+        ObservableList<ChatMessage> items = messageList.getItems();
+        if (after) {
+            List<ChatMessage> fresh = new ArrayList<>();
+            for (ChatMessage m : page.items) {
+                if (page.resume && attachToPending(m)) continue;
+                if (markShown(m.id)) fresh.add(m);
+            }
+            items.addAll(fresh);
+            if (!fresh.isEmpty()) newestId = Math.max(newestId, fresh.get(fresh.size() - 1).id);
+            // 还有更多时保持"脱离"状态，滚动到底部继续按 AFTER 补齐
+            detached = page.hasMore;
+            trimTop();
+        } else {
+            // 初始 JOIN 页或向上翻页：插到顶部
+            List<ChatMessage> older = new ArrayList<>();
+            for (ChatMessage m : page.items) {
+                if ((oldestId == 0 || m.id < oldestId) && markShown(m.id)) older.add(m);
+            }
+            items.addAll(0, older);
+            if (!older.isEmpty()) {
+                oldestId = older.get(0).id;
+                newestId = Math.max(newestId, older.get(older.size() - 1).id);
+            }
+            hasOlder = page.hasMore;
+            trimBottom();
+            // 保持视口停留在原来的第一条消息上
+            messageList.scrollTo(older.size());
+        }
+    }
+
+    /**
+     * 续传补发的自己的消息可能就是断线前已存储、但 ACK 丢失的那条：
+     * 按发送者与内容匹配最早的待确认消息，把 id 记到已显示的气泡上而不是再加一条。
+     * 随后的去重 ACK 找不到待确认项，直接忽略。
+     */
+    private boolean attachToPending(ChatMessage replayed) {
+        if (!replayed.sender.equals(myUsername)) return false;
+        for (ChatMessage mine : awaitingAck) {
+            if (mine.content.equals(replayed.content)) {
+                awaitingAck.remove(mine);
+                mine.id = replayed.id;
+                markShown(replayed.id);
+                newestId = Math.max(newestId, replayed.id);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** 记录一条已显示的消息 id；已经显示过时返回 false */
+    private boolean markShown(long id) {
+        return shownIds.add(id);
+    }
+
+    /** 超出上限时丢弃最旧的条目，之后可向上翻页取回 */
+    private void trimTop() {
+        ObservableList<ChatMessage> items = messageList.getItems();
+        if (items.size() <= MAX_ITEMS) return;
+        List<ChatMessage> dropped = items.subList(0, items.size() - MAX_ITEMS);
+        for (ChatMessage m : dropped) shownIds.remove(m.id);
+        dropped.clear();
+        hasOlder = true;
+        for (ChatMessage m : items) {
+            if (m.id > 0) { oldestId = m.id; break; }
+        }
+    }
+
+    /** 向上翻页后超出上限时丢弃最新的条目，滚动到底部时再按 AFTER 取回 */
+    private void trimBottom() {
+        ObservableList<ChatMessage> items = messageList.getItems();
+        if (items.size() <= MAX_ITEMS) return;
+        List<ChatMessage> dropped = items.subList(MAX_ITEMS, items.size());
+        for (ChatMessage m : dropped) shownIds.remove(m.id);
+        dropped.clear();
+        detached = true;
+        for (int i = items.size() - 1; i >= 0; i--) {
+            if (items.get(i).id > 0) { newestId = items.get(i).id; break; }
+        }
+    }
+
+    /** 滚动到顶部/底部时向服务端请求相邻的一页 */
+    private void watchScroll() {
+        for (Node n : messageList.lookupAll(".scroll-bar")) {
+            if (n instanceof ScrollBar && ((ScrollBar) n).getOrientation() == Orientation.VERTICAL) {
+                ScrollBar bar = (ScrollBar) n;
+                bar.valueProperty().addListener((obs, o, v) -> {
+                    if (v.doubleValue() <= bar.getMin()) requestPage("BEFORE");
+                    else if (v.doubleValue() >= bar.getMax()) requestPage("AFTER");
+                });
+            }
+        }
+    }
+
+    private void requestPage(String direction) {
+        if (pageInFlight || out == null) return;
+        long cursor;
+        if (direction.equals("BEFORE")) {
+            if (!hasOlder || oldestId <= 1) return;
+            cursor = oldestId;
+        } else {
+            if (!detached) return;
+            cursor = newestId;
+        }
+        pageInFlight = true;
+        pageDirection = direction;
+        out.println("HISTORY " + room + " " + direction + " " + cursor + " " + PAGE_SIZE);
     }
 
     @Override
     public void stop() throws Exception {
+        stopping = true;
+        if (pump != null) pump.stop();
         if (out != null) {
             out.println("QUIT");
             socket.close();
@@ -188,8 +504,20 @@ public class ClientGUI extends Application {
         public void deselect(int index) {}
     }
 
-    /** 渲染 ChatMessage 的单元格 */
+    /** 渲染 ChatMessage 的单元格：节点只创建一次，复用时只更新内容 */
     private class ChatCell extends ListCell<ChatMessage> {
+        private final Label lbl = new Label();
+        private final ImageView avatar = new ImageView();
+        private final HBox box = new HBox(8);
+        private Boolean mineLayout;
+
+        ChatCell() {
+            lbl.setWrapText(true);
+            lbl.setMaxWidth(300);
+            avatar.setFitWidth(32);
+            avatar.setFitHeight(32);
+        }
+
         @Override
         protected void updateItem(ChatMessage msg, boolean empty) {
             super.updateItem(msg, empty);
@@ -198,37 +526,38 @@ public class ClientGUI extends Application {
                 return;
             }
 
-            Label lbl = new Label(msg.content);
-            lbl.setWrapText(true);
-            lbl.setMaxWidth(300);
-            lbl.getStyleClass().add(
-                msg.sender.equals(myUsername) ? "my-bubble" : "other-bubble"
-            );
-
-            // >>>> 安全加载头像
-            String avatarPath = avatarMap.getOrDefault(msg.sender, defaultAvatar);
-            URL url = getClass().getResource(avatarPath);
-            ImageView avatar;
-            if (url != null) {
-                avatar = new ImageView(new Image(url.toExternalForm(), 32,32,true,true));
-            } else {
-                avatar = new ImageView();
-                avatar.setFitWidth(32);
-                avatar.setFitHeight(32);
-            }
+            boolean mine = msg.sender.equals(myUsername);
+            lbl.setText(msg.content);
+            lbl.getStyleClass().removeAll("my-bubble", "other-bubble");
+            lbl.getStyleClass().add(mine ? "my-bubble" : "other-bubble");
+
+            // >>>> 头像走缓存，避免每次更新都重新加载资源
+            avatar.setImage(avatarImage(avatarMap.getOrDefault(msg.sender, defaultAvatar)));
 
-            HBox box = new HBox(8);
-            if (msg.sender.equals(myUsername)) {
-                box.setAlignment(Pos.TOP_RIGHT);
-                box.getChildren().setAll(lbl, avatar);
-            } else {
-                box.setAlignment(Pos.TOP_LEFT);
-                box.getChildren().setAll(avatar, lbl);
+            if (mineLayout == null || mineLayout != mine) {
+                if (mine) {
+                    box.setAlignment(Pos.TOP_RIGHT);
+                    box.getChildren().setAll(lbl, avatar);
+                } else {
+                    box.setAlignment(Pos.TOP_LEFT);
+                    box.getChildren().setAll(avatar, lbl);
+                }
+                mineLayout = mine;
             }
             setGraphic(box);
         }
     }
 
+    private Image avatarImage(String path) {
+        if (avatarCache.containsKey(path)) {
+            return avatarCache.get(path);
+        }
+        URL url = getClass().getResource(path);
+        Image img = url != null ? new Image(url.toExternalForm(), 32, 32, true, true, true) : null;
+        avatarCache.put(path, img);
+        return img;
+    }
+
     public static void main(String[] args) {
         launch(args);
     }
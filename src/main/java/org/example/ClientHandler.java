@@ -6,7 +6,6 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.IOException;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -14,14 +13,34 @@ import java.util.concurrent.ConcurrentHashMap;
 public class ClientHandler implements Runnable {
     private final Socket socket;
     private final DataStore store;
-    private String currentRoom;
-    private String username;
+    private volatile String currentRoom;
+    private volatile String username;
     private PrintWriter out;
     private BufferedReader in;
+    private TlsChannel tls;   // 未启用 TLS 时为 null
+
+    private static final int DEFAULT_PAGE_SIZE = 50;
+    // 单次续传最多补发的消息数，其余由客户端按需翻页
+    private static final int RESUME_MAX = 1000;
+    // 每个用户的去重窗口：最多记住 1024 个客户端消息 id，保留 10 分钟
+    private static final int DEDUPE_MAX_ENTRIES = 1024;
+    private static final long DEDUPE_TTL_MS = 10 * 60 * 1000;
+    private static final Map<String, DedupeWindow> dedupeWindows = new ConcurrentHashMap<>();
 
     public String getCurrentRoom() { return currentRoom; }
+    public String getUsername()    { return username;    }
     public PrintWriter getWriter()      { return out;         }
 
+    /** Drop dedupe windows whose entries have all expired */
+    public static void sweepDedupeWindows() {
+        long now = System.currentTimeMillis();
+        dedupeWindows.entrySet().removeIf(e -> {
+            synchronized (e.getValue()) {
+                return e.getValue().isEmpty(now);
+            }
+        });
+    }
+
     public ClientHandler(Socket socket, DataStore store) {
         this.socket = socket;
         this.store = store;
@@ -30,85 +49,67 @@ public class ClientHandler implements Runnable {
     @Override
     public void run() {
         try {
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            out.println("Welcome! Commands: JOIN <room> <username>, SEND <room> <message>, LIST, HISTORY <room> <count>, QUIT");
+            if (TlsChannel.serverEnabled()) {
+                tls = TlsChannel.accept(socket);
+                out = new PrintWriter(tls.getOutputStream(), true);
+                in = new BufferedReader(new InputStreamReader(tls.getInputStream()));
+            } else {
+                out = new PrintWriter(socket.getOutputStream(), true);
+                in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            }
+            out.println("Welcome! Commands: JOIN <room> <username>, SEND <room> <message>, SEND#<clientMsgId> <room> <message>, RESUME <room> <lastSeenId> <username>, LIST, HISTORY <room> <count>, HISTORY <room> BEFORE|AFTER <msgId|@timestamp> [count], QUIT");
 
             String line;
             while ((line = in.readLine()) != null) {
+                ChatEvents.Command event = new ChatEvents.Command();
+                event.begin();
                 String[] parts = line.split(" ", 3);
                 String cmd = parts[0].toUpperCase();
+                // SEND#<clientMsgId>：客户端生成的消息 id（最多 16 位十六进制），用于幂等去重
+                long clientMsgId = 0;
+                if (cmd.startsWith("SEND#")) {
+                    try {
+                        clientMsgId = Long.parseUnsignedLong(cmd.substring(5), 16);
+                    } catch (NumberFormatException e) {
+                        out.println("Client message id must be hex");
+                        continue;
+                    }
+                    cmd = "SEND";
+                }
                 switch (cmd) {
                     case "JOIN":
                     if (parts.length >= 3) {
-                        String room = parts[1];
-                        String user = parts[2];
-
-                        // —— ① 服务端维护房间用户顺序并分配 avatarId ——
-                        Server.usersInRoom
-                            .computeIfAbsent(room, r -> new CopyOnWriteArrayList<>());
-                        CopyOnWriteArrayList<String> list = Server.usersInRoom.get(room);
-                        if (!list.contains(user)) list.add(user);
-                        int avatarId = list.indexOf(user);
-
-                        // —— 新增：先把已有用户的映射全发给新客户端 ——
-                        for (String existing : list) {
-                            int id = list.indexOf(existing);
-                            // 只发给新客户端，所以用 out.println
-                            out.println("USERJOIN|" + existing + "|" + id);
-                        }        // —— 新增：先把已有用户的映射全发给新客户端 ——
-                        for (String existing : list) {
-                            int id = list.indexOf(existing);
-                            // 只发给新客户端，所以用 out.println
-                            out.println("USERJOIN|" + existing + "|" + id);
-                        }
-
-                        // —— ② 创建房间、注册客户端 ——
-                        currentRoom = room;
-                        username = user;
-                        store.createRoom(room);
-                        out.println("Joined room: " + room + " as " + username);
-                        ServerStats.addLog("Client " + username + " joined room: " + room);
-                        Server.registerClient(room, out);
-
-                        // —— ③ 广播 USERJOIN 通知，包含 avatarId ——
-                        String joinMsg = "USERJOIN|" + username + "|" + avatarId;
-                        Server.broadcast(room, joinMsg, null);
-
-                        // —— ④ 发送最近 N 条历史消息 ——
-                        final int N = 10;
-                        List<String> recent = store.getRecentMessages(room, N);
-                        if (!recent.isEmpty()) {
-                            out.println("Last " + N + " messages in " + room + ":");
-                            for (String m : recent) {
-                                out.println(m);
-                            }
-                        }
+                        enterRoom(parts[1], parts[2], -1);
                     } else {
                         out.println("Usage: JOIN <room> <username>");
                     }
                     break;
 
-
-                    case "SEND":
-                        if (parts.length >= 3 && currentRoom != null && username != null) {
-                            String room = parts[1];
-                            String msg = parts[2];
-
-                            // 持久化到 DataStore 和备份
-                            store.addMessage(room, username + ": " + msg);
+                    case "RESUME":
+                        // RESUME <room> <lastSeenId> <username>：断线重连，只补发 lastSeenId 之后的消息
+                        String[] resume = parts.length >= 3 ? parts[2].split(" ", 2) : new String[0];
+                        if (resume.length == 2) {
+                            long lastSeen;
                             try {
-                                MessageHelper.appendMessage(room, username + ": " + msg);
-                            } catch (IOException e) {
-                                out.println("Error persisting message: " + e.getMessage());
+                                lastSeen = Long.parseLong(resume[0]);
+                            } catch (NumberFormatException e) {
+                                out.println("Last seen id must be a number");
+                                break;
                             }
+                            enterRoom(parts[1], resume[1], Math.max(0, lastSeen));
+                        } else {
+                            out.println("Usage: RESUME <room> <lastSeenId> <username>");
+                        }
+                        break;
+
 
-                            // 广播给房间内其他客户端，并包含用户名
-                            String fullMsg = username + "|" + msg;
-                            Server.broadcast(room, fullMsg, out);
-                            ServerStats.addLog("Message from " + username + " to " + room + ": " + msg);
+                    case "SEND":
+                        if (parts.length >= 3 && currentRoom != null && username != null) {
+                            String room = parts[1], msg = parts[2], user = username;
+                            long cid = clientMsgId;
+                            Server.onRoom(room, () -> handleSend(room, user, msg, cid));
                         } else {
-                            out.println("Usage: SEND <room> <message> (after JOINing)");
+                            out.println("Usage: SEND <room> <message> | SEND#<clientMsgId> <room> <message> (after JOINing)");
                         }
                         break;
 
@@ -119,32 +120,50 @@ public class ClientHandler implements Runnable {
                     case "HISTORY":
                         if (parts.length >= 3) {
                             String room = parts[1];
+                            String[] args = parts[2].trim().split("\\s+");
+                            String mode = args[0].toUpperCase();
+                            if (mode.equals("BEFORE") || mode.equals("AFTER")) {
+                                sendHistoryPage(room, mode, args);
+                                break;
+                            }
                             int count;
                             try {
-                                count = Integer.parseInt(parts[2]);
+                                count = Integer.parseInt(args[0]);
                             } catch (NumberFormatException e) {
                                 out.println("Count must be a number");
                                 break;
                             }
-                            List<String> history = store.getRecentMessages(room, count);
+                            if (count < 1) {
+                                out.println("Count must be positive");
+                                break;
+                            }
+                            // 服务端限制单页大小，避免一次拷贝整个房间
+                            count = Math.min(count, DataStore.MAX_PAGE_SIZE);
+                            List<String> history;
+                            try {
+                                history = store.getRecentMessages(room, count);
+                            } catch (IOException e) {
+                                out.println("Error loading history: " + e.getMessage());
+                                break;
+                            }
                             out.println("Last " + count + " messages in " + room + ":");
                             for (String m : history) {
                                 out.println(m);
                             }
                         } else {
-                            out.println("Usage: HISTORY <room> <count>");
+                            out.println("Usage: HISTORY <room> <count> | HISTORY <room> BEFORE|AFTER <msgId|@timestamp> [count]");
                         }
                         break;
 
                     case "QUIT":
                         out.println("Goodbye!");
                         ServerStats.addLog("Client " + (username != null ? username : "") + " quit");
-                        // 清理客户端注册信息
+                        // 清理客户端注册信息；房间历史留在内存中，由空闲驱逐统一回收
                         if (currentRoom != null) {
-                            Server.unregisterClient(currentRoom, out);
-                            if (!Server.hasRoom(currentRoom)) {
-                                store.removeRoom(currentRoom);
-                            }
+                            leaveRoom(currentRoom, username);
+                        }
+                        if (tls != null) {
+                            tls.close();
                         }
                         socket.close();
                         return;
@@ -152,9 +171,223 @@ public class ClientHandler implements Runnable {
                     default:
                         out.println("Unknown command.");
                 }
+                event.end();
+                if (event.shouldCommit()) {
+                    event.command = cmd;
+                    event.room = parts.length > 1 ? parts[1] : null;
+                    event.size = line.length();
+                    event.commit();
+                }
             }
         } catch (IOException e) {
             System.err.println("ClientHandler error: " + e.getMessage());
         }
     }
+
+    /**
+     * Record the room and user on this connection, then run the join on the
+     * room's owning thread. Later commands from this connection for the same
+     * room are queued behind it.
+     */
+    private void enterRoom(String room, String user, long resumeAfter) {
+        // 冷房间在本线程加载（会扫描日志），不占用分片工作线程，避免阻塞同分片的其他房间
+        try {
+            store.createRoom(room);
+        } catch (IOException e) {
+            // 日志读取失败时不加入：房间若按空房间创建，新消息的 id 会与已持久化的位置冲突
+            out.println("Error loading room " + room + ": " + e.getMessage());
+            return;
+        }
+        String previous = currentRoom;
+        if (previous != null && (!previous.equals(room) || !user.equals(username))) {
+            // 切换房间（或改名）：先离开原房间，名单与广播成员不再残留旧连接
+            leaveRoom(previous, username);
+        }
+        currentRoom = room;
+        username = user;
+        Server.onRoom(room, () -> join(room, user, resumeAfter));
+    }
+
+    /** Unregister this connection from a room's broadcast members and user roster */
+    private void leaveRoom(String room, String user) {
+        PrintWriter conn = out;
+        Server.onRoom(room, () -> {
+            Server.unregisterClient(room, conn);
+            Server.leaveRoster(room, user, conn);
+        });
+    }
+
+    /**
+     * Join a room. A fresh join ({@code resumeAfter < 0}) is answered with the
+     * last few messages as a HIST page; a resume replays only the messages
+     * after {@code resumeAfter}, up to {@link #RESUME_MAX}, terminated by
+     * RESUMED|room|n|hasMore. The client is registered before the replay, so
+     * every message is either in the replay or delivered live.
+     */
+    private void join(String room, String user, long resumeAfter) {
+        boolean resuming = resumeAfter >= 0;
+
+        // —— ① 服务端维护房间用户名单并分配 avatarId（user -> id，离开时回收）——
+        boolean[] knownFlag = new boolean[1];
+        RoomRoster roster = Server.joinRoster(room, user, out, knownFlag);
+        boolean known = knownFlag[0];
+        int avatarId = roster.avatarId(user);
+
+        // —— 先把已有用户的映射一次性发给新客户端 ——
+        for (Map.Entry<String, Integer> existing : roster.snapshot().entrySet()) {
+            // 只发给新客户端，所以用 out.println
+            out.println("USERJOIN|" + existing.getKey() + "|" + existing.getValue());
+        }
+
+        // —— ② 注册客户端（房间已在 enterRoom 中加载）——
+        out.println((resuming ? "Resumed room: " : "Joined room: ") + room + " as " + user);
+        ServerStats.addLog("Client " + user + (resuming ? " resumed room: " : " joined room: ") + room);
+        Server.registerClient(room, out);
+
+        // —— ③ 广播 USERJOIN 通知，包含 avatarId（重连的老用户不再重复通知）——
+        if (!resuming || !known) {
+            String joinMsg = "USERJOIN|" + user + "|" + avatarId;
+            Server.broadcast(room, joinMsg, null);
+        }
+
+        if (!resuming) {
+            // —— ④ 发送最近 N 条历史消息（HIST 页格式，客户端据此得知最早 id 以便向上翻页）——
+            final int N = 10;
+            try {
+                sendPage(room, store.getMessagesBefore(room, Long.MAX_VALUE, N));
+            } catch (IOException e) {
+                out.println("Error loading history: " + e.getMessage());
+                out.println("HISTEND|" + room + "|0|false");
+            }
+            return;
+        }
+
+        // —— ④' 续传：按页补发错过的消息，总量封顶，剩余部分由客户端按 AFTER 翻页取回 ——
+        long cursor = resumeAfter;
+        int sent = 0;
+        boolean hasMore = false;
+        while (sent < RESUME_MAX) {
+            DataStore.HistoryPage page;
+            try {
+                page = store.getMessagesAfter(room, cursor, Math.min(DataStore.MAX_PAGE_SIZE, RESUME_MAX - sent));
+            } catch (IOException e) {
+                // 结束续传并标记还有更多，客户端稍后按 AFTER 翻页重试
+                out.println("Error loading history: " + e.getMessage());
+                hasMore = true;
+                break;
+            }
+            for (DataStore.HistoryEntry e : page.entries) {
+                out.println("HIST|" + e.id + "|" + e.timestamp + "|" + e.sender + "|" + e.text);
+                cursor = e.id;
+            }
+            sent += page.entries.size();
+            hasMore = page.hasMore;
+            if (!hasMore) break;
+        }
+        out.println("RESUMED|" + room + "|" + sent + "|" + hasMore);
+    }
+
+    /**
+     * Store, persist, broadcast and acknowledge one chat message. When the
+     * client supplies a message id that is still in this user's dedupe
+     * window, the original server id is acknowledged and nothing else happens.
+     */
+    private void handleSend(String room, String username, String msg, long clientMsgId) {
+        long started = System.nanoTime();
+        DedupeWindow window = clientMsgId != 0
+                ? dedupeWindows.computeIfAbsent(username, u -> new DedupeWindow(DEDUPE_MAX_ENTRIES, DEDUPE_TTL_MS))
+                : null;
+        String ackSuffix = clientMsgId != 0 ? "|" + Long.toHexString(clientMsgId) : "";
+        long id;
+        RoomSequencer sequencer = Server.sequencer(room);
+        // 同一用户的发送在其去重窗口上串行，重连时重复提交的同一条消息只会存储一次
+        synchronized (window != null ? window : this) {
+            if (window != null) {
+                long existing = window.get(clientMsgId, System.currentTimeMillis());
+                if (existing >= 0) {
+                    ServerStats.recordDedupe(true);
+                    out.println("ACK|" + existing + ackSuffix);
+                    return;
+                }
+                ServerStats.recordDedupe(false);
+            }
+
+            // 先写日志再分配 id；广播与复制只在房间锁内入队（不阻塞），房间内的消息按 id 顺序送达。
+            // 房间锁按条带跨房间共享，写套接字放到锁外由序列器完成
+            long now = System.currentTimeMillis();
+            synchronized (store.roomLock(room)) {
+                try {
+                    id = store.addMessage(room, username, msg, now);
+                } catch (IOException e) {
+                    out.println("Error persisting message: " + e.getMessage());
+                    return;
+                }
+                String broadcast = "MSG|" + id + "|" + username + "|" + msg;
+                PrintWriter sender = out;
+                sequencer.enqueue(() -> Server.broadcast(room, broadcast, sender));
+                Server.replicate(room, id, now, username, msg);
+            }
+            if (window != null) {
+                window.put(clientMsgId, id, now);
+            }
+        }
+        sequencer.drain();
+
+        // 向发送者确认 id
+        out.println("ACK|" + id + ackSuffix);
+        ServerStats.recordMessage(room, System.nanoTime() - started);
+        if (ServerStats.VERBOSE) {
+            ServerStats.addLog("Message from " + username + " to " + room + ": " + msg);
+        }
+    }
+
+    /**
+     * Cursor-based history page: HISTORY <room> BEFORE|AFTER <msgId|@timestamp> [count].
+     * Replies with HIST|id|timestamp|sender|text lines followed by HISTEND|room|n|hasMore.
+     */
+    private void sendHistoryPage(String room, String mode, String[] args) {
+        if (args.length < 2) {
+            out.println("Usage: HISTORY <room> BEFORE|AFTER <msgId|@timestamp> [count]");
+            return;
+        }
+        boolean byTime = args[1].startsWith("@");
+        long cursor;
+        int count = DEFAULT_PAGE_SIZE;
+        try {
+            cursor = Long.parseLong(byTime ? args[1].substring(1) : args[1]);
+            if (args.length >= 3) {
+                count = Integer.parseInt(args[2]);
+            }
+        } catch (NumberFormatException e) {
+            out.println("Cursor and count must be numbers");
+            return;
+        }
+        if (count < 1) {
+            out.println("Count must be positive");
+            return;
+        }
+
+        boolean before = mode.equals("BEFORE");
+        DataStore.HistoryPage page;
+        try {
+            if (byTime) {
+                page = before ? store.getMessagesBeforeTime(room, cursor, count)
+                              : store.getMessagesAfterTime(room, cursor, count);
+            } else {
+                page = before ? store.getMessagesBefore(room, cursor, count)
+                              : store.getMessagesAfter(room, cursor, count);
+            }
+        } catch (IOException e) {
+            out.println("Error loading history: " + e.getMessage());
+            return;
+        }
+        sendPage(room, page);
+    }
+
+    private void sendPage(String room, DataStore.HistoryPage page) {
+        for (DataStore.HistoryEntry e : page.entries) {
+            out.println("HIST|" + e.id + "|" + e.timestamp + "|" + e.sender + "|" + e.text);
+        }
+        out.println("HISTEND|" + room + "|" + page.entries.size() + "|" + page.hasMore);
+    }
 }
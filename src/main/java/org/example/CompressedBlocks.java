@@ -0,0 +1,126 @@
+package org.example;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Block framing shared by history segments, backups and the replication stream.
+ *
+ * <pre>
+ * header: "DSZ1" codecName(UTF)
+ * block:  key(UTF) lineCount(int) rawLength(int) compressedLength(int) bytes
+ * </pre>
+ *
+ * The key is the room name for history/backup blocks, so a reader looking
+ * for one room can skip every other block without decompressing it.
+ */
+public final class CompressedBlocks {
+    public static final int MAGIC = 0x44535A31; // "DSZ1"
+
+    /** One decoded block */
+    public static class Block {
+        public final String key;
+        public final List<String> lines;
+        Block(String key, List<String> lines) {
+            this.key = key;
+            this.lines = lines;
+        }
+    }
+
+    /** One block still in its encoded form, copied between streams that use the same codec */
+    public static class RawBlock {
+        public final String key;
+        final int lineCount;
+        final int rawLength;
+        final byte[] data;
+        RawBlock(String key, int lineCount, int rawLength, byte[] data) {
+            this.key = key;
+            this.lineCount = lineCount;
+            this.rawLength = rawLength;
+            this.data = data;
+        }
+    }
+
+    private CompressedBlocks() {}
+
+    public static void writeHeader(DataOutputStream out, BlockCodec codec) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeUTF(codec.name());
+    }
+
+    /** Read the stream header and return its codec */
+    public static BlockCodec readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a compressed block stream");
+        }
+        return BlockCodec.forName(in.readUTF());
+    }
+
+    public static void writeBlock(DataOutputStream out, BlockCodec codec, String key, List<String> lines) throws IOException {
+        byte[] raw = String.join("\n", lines).getBytes(StandardCharsets.UTF_8);
+        byte[] data = codec.compress(raw);
+        out.writeUTF(key);
+        out.writeInt(lines.size());
+        out.writeInt(raw.length);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    /** Read the next block without decoding it, or return null at a clean end of stream */
+    public static RawBlock readRawBlock(DataInputStream in) throws IOException {
+        String key;
+        try {
+            key = in.readUTF();
+        } catch (EOFException e) {
+            return null;
+        }
+        int lineCount = in.readInt();
+        int rawLength = in.readInt();
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return new RawBlock(key, lineCount, rawLength, data);
+    }
+
+    /** Write a block read by {@link #readRawBlock}; the stream must use the codec it was encoded with */
+    public static void writeRawBlock(DataOutputStream out, RawBlock block) throws IOException {
+        out.writeUTF(block.key);
+        out.writeInt(block.lineCount);
+        out.writeInt(block.rawLength);
+        out.writeInt(block.data.length);
+        out.write(block.data);
+    }
+
+    /**
+     * Read the next block, or return null at a clean end of stream.
+     * Blocks whose key is rejected by {@code keyFilter} are skipped without
+     * being decompressed and come back with an empty line list.
+     */
+    public static Block readBlock(DataInputStream in, BlockCodec codec, Predicate<String> keyFilter) throws IOException {
+        String key;
+        try {
+            key = in.readUTF();
+        } catch (EOFException e) {
+            return null;
+        }
+        int lineCount = in.readInt();
+        int rawLength = in.readInt();
+        int dataLength = in.readInt();
+        if (keyFilter != null && !keyFilter.test(key)) {
+            in.skipNBytes(dataLength);
+            return new Block(key, List.of());
+        }
+        byte[] data = new byte[dataLength];
+        in.readFully(data);
+        byte[] raw = codec.decompress(data, rawLength);
+        List<String> lines = lineCount == 0 ? new ArrayList<>()
+                : new ArrayList<>(Arrays.asList(new String(raw, StandardCharsets.UTF_8).split("\n", -1)));
+        return new Block(key, lines);
+    }
+}
@@ -1,53 +1,475 @@
 package org.example;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.function.Predicate;
 
 
 public class DataStore {
-    private final ConcurrentHashMap<String, List<String>> rooms = new ConcurrentHashMap<>();
+    /** Server-enforced upper bound for one HISTORY page */
+    public static final int MAX_PAGE_SIZE = 200;
+
+    private final ConcurrentHashMap<String, RoomLog> rooms = new ConcurrentHashMap<>();
     private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
+    private final boolean offHeap;
+    // 房间顺序锁（分段）：同一房间的加载、持久化与 id 分配串行，日志中的行序与内存 id 顺序一致
+    private final Object[] roomLocks = new Object[256];
+    private volatile RoomLoader roomLoader;
+    private volatile Persister persister;
+
+    /** Receives one persisted message while a room is being hydrated */
+    public interface MessageSink {
+        void accept(String sender, String text, long timestamp);
+    }
+
+    /** Reads a room's messages back from persistent storage, oldest first */
+    public interface RoomLoader {
+        void load(String room, MessageSink sink) throws IOException;
+    }
+
+    /** Durably records one message before it is given an id in memory */
+    public interface Persister {
+        void persist(String room, String sender, String text, long timestamp) throws IOException;
+    }
+
+    private static class PendingMessage {
+        final String sender;
+        final String text;
+        final long timestamp;
+        PendingMessage(String sender, String text, long timestamp) {
+            this.sender = sender;
+            this.text = text;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /** Storage backend chosen by -Ddschat.store=offheap (default: heap) */
+    public DataStore() {
+        this("offheap".equalsIgnoreCase(System.getProperty("dschat.store", "heap")));
+    }
+
+    public DataStore(boolean offHeap) {
+        this.offHeap = offHeap;
+        for (int i = 0; i < roomLocks.length; i++) {
+            roomLocks[i] = new Object();
+        }
+    }
+
+    /** Source used to rehydrate rooms that are not resident in memory */
+    public void setRoomLoader(RoomLoader loader) {
+        this.roomLoader = loader;
+    }
+
+    /** Log that every message is written to, in id order, before it becomes visible */
+    public void setPersister(Persister persister) {
+        this.persister = persister;
+    }
+
+    /**
+     * The lock under which a room's messages are persisted and numbered.
+     * Holding it around {@link #addMessage} keeps follow-up work, such as the
+     * fan-out, in id order as well. Rooms may share a lock.
+     */
+    public Object roomLock(String room) {
+        int h = room.hashCode();
+        h ^= (h >>> 16);
+        return roomLocks[h & (roomLocks.length - 1)];
+    }
+
+    /** One stored message, decoded from the compact room log on read */
+    public static class HistoryEntry {
+        public final long id;
+        public final long timestamp;
+        public final String sender;
+        public final String text;
+        public HistoryEntry(long id, long timestamp, String sender, String text) {
+            this.id = id;
+            this.timestamp = timestamp;
+            this.sender = sender;
+            this.text = text;
+        }
+
+        /** Legacy "user: msg" rendering */
+        public String format() {
+            return sender.isEmpty() ? text : sender + ": " + text;
+        }
+    }
+
+    /** A page of history plus whether more messages exist past its far end */
+    public static class HistoryPage {
+        public final List<HistoryEntry> entries;
+        public final boolean hasMore;
+        public HistoryPage(List<HistoryEntry> entries, boolean hasMore) {
+            this.entries = entries;
+            this.hasMore = hasMore;
+        }
+    }
+
+    /**
+     * Per-room log stored as parallel primitive arrays (struct-of-arrays):
+     * timestamp, interned sender id and the arena handle/length of the UTF-8
+     * payload. A message's id is its room-local sequence number (starting at 1),
+     * so id -> position is plain arithmetic and timestamp -> position is a
+     * binary search. Payload bytes live in a {@link PayloadArena}, which may be
+     * off-heap; text is only decoded when a message is read. Sender names are
+     * interned per room, so the table goes away with the room on eviction.
+     */
+    private static class RoomLog {
+        final long firstId = 1;
+        final PayloadArena arena;
+        int size;
+        long[] timestamps = new long[16];
+        int[] senders = new int[16];
+        long[] handles = new long[16];
+        int[] lengths = new int[16];
+        // 本房间的发送者名字驻留表：每条消息只存一个 int，受 rwLock 保护
+        final Map<String, Integer> senderIds = new HashMap<>();
+        final List<String> senderNames = new ArrayList<>();
+        long senderBytes;
+        volatile long lastAccess = System.currentTimeMillis();
+        // 驱逐时在写锁内置位，读者在读锁内检查
+        boolean released;
+
+        RoomLog(PayloadArena arena) {
+            this.arena = arena;
+        }
+
+        /** Metadata arrays (8 + 4 + 8 + 4 bytes per slot), sender table and payload storage */
+        long footprint() {
+            return (long) timestamps.length * 24 + senderBytes + arena.footprint();
+        }
+
+        int internSender(String sender) {
+            Integer id = senderIds.get(sender);
+            if (id == null) {
+                id = senderNames.size();
+                senderNames.add(sender);
+                senderIds.put(sender, id);
+                // 粗略计入字符串与哈希表项的开销
+                senderBytes += 64 + 2L * sender.length();
+            }
+            return id;
+        }
+
+        String sender(int pos) {
+            return senderNames.get(senders[pos]);
+        }
+
+        long lastId() {
+            return firstId + size - 1;
+        }
+
+        /** Hand the payload storage back to the arena; caller holds the write lock */
+        void release() {
+            released = true;
+            arena.release();
+        }
+
+        long append(String sender, byte[] text, long timestamp) {
+            int pos = size;
+            if (pos == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, pos * 2);
+                senders = Arrays.copyOf(senders, pos * 2);
+                handles = Arrays.copyOf(handles, pos * 2);
+                lengths = Arrays.copyOf(lengths, pos * 2);
+            }
+            // 保证时间戳单调，二分查找才成立
+            timestamps[pos] = pos > 0 ? Math.max(timestamp, timestamps[pos - 1]) : timestamp;
+            senders[pos] = internSender(sender);
+            handles[pos] = arena.append(text);
+            lengths[pos] = text.length;
+            size++;
+            return firstId + pos;
+        }
+
+        String text(int pos) {
+            return arena.decode(handles[pos], lengths[pos]);
+        }
+
+        /** First position whose timestamp is strictly greater than {@code ts} */
+        int upperBound(long ts) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (timestamps[mid] <= ts) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+
+        /** First position whose timestamp is greater than or equal to {@code ts} */
+        int lowerBound(long ts) {
+            int lo = 0, hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (timestamps[mid] < ts) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    private List<HistoryEntry> slice(RoomLog log, int from, int to) {
+        List<HistoryEntry> out = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            out.add(new HistoryEntry(log.firstId + i, log.timestamps[i],
+                    log.sender(i), log.text(i)));
+        }
+        return out;
+    }
+
+
+    /** Make sure the room is in memory, hydrating it from the persistent log if needed */
+    public void createRoom(String room) throws IOException {
+        open(room, true, true);
+    }
+
+
+    public long addMessage(String room, String sender, String text) throws IOException {
+        return addMessage(room, sender, text, System.currentTimeMillis());
+    }
+
+
+    /**
+     * Append a message with an explicit timestamp and return its id. The
+     * message is handed to the {@link Persister} first, under the room lock,
+     * so the persisted order is the id order and a failed write (reported as
+     * IOException) assigns no id.
+     */
+    public long addMessage(String room, String sender, String text, long timestamp) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        synchronized (roomLock(room)) {
+            RoomLog log = open(room, true, true);
+            Persister p = persister;
+            if (p != null) {
+                p.persist(room, sender, text, timestamp);
+            }
+            lockWrite(room);
+            try {
+                if (rooms.get(room) == log) {
+                    return log.append(sender, bytes, timestamp);
+                }
+            } finally {
+                rwLock.writeLock().unlock();
+            }
+            // 房间在 open 之后被驱逐：重新加载时已读到刚持久化的这一行，
+            // 房间锁保证期间没有其他写入，因此它就是最后一条
+            log = open(room, true, true);
+            lockWrite(room);
+            try {
+                return p != null ? log.lastId() : log.append(sender, bytes, timestamp);
+            } finally {
+                rwLock.writeLock().unlock();
+            }
+        }
+    }
 
 
-    public void createRoom(String room) {
-        rwLock.writeLock().lock();
+    /** Take the read lock, timing the wait only while a recording has the event enabled */
+    private void lockRead(String room) {
+        lockTimed(rwLock.readLock(), "read", room);
+    }
+
+    /** Take the write lock, timing the wait only while a recording has the event enabled */
+    private void lockWrite(String room) {
+        lockTimed(rwLock.writeLock(), "write", room);
+    }
+
+    private static void lockTimed(Lock lock, String mode, String room) {
+        // 只用 lock()：tryLock() 会插队到排队的写者之前，改变锁的公平性
+        ChatEvents.LockWait event = new ChatEvents.LockWait();
+        if (!event.isEnabled()) {
+            lock.lock();
+            return;
+        }
+        event.begin();
+        lock.lock();
+        event.end();
+        if (event.shouldCommit()) {
+            event.mode = mode;
+            event.room = room;
+            event.commit();
+        }
+    }
+
+    /**
+     * Return the in-memory log for a room, hydrating it from the loader when it
+     * is not resident. With {@code create == false} a room that has no
+     * persisted messages is not materialised.
+     */
+    private RoomLog open(String room, boolean create, boolean touch) throws IOException {
+        RoomLog log = rooms.get(room);
+        if (log == null) {
+            log = hydrate(room, create);
+        }
+        if (log != null && touch) {
+            log.lastAccess = System.currentTimeMillis();
+        }
+        return log;
+    }
+
+
+    /**
+     * {@link #open} without materialising the room, then take the read lock.
+     * A log evicted in between has released its payloads, so it is opened
+     * again. The caller unlocks.
+     */
+    private RoomLog openRead(String room, boolean touch) throws IOException {
+        while (true) {
+            RoomLog log = open(room, false, touch);
+            lockRead(room);
+            if (log == null || !log.released) {
+                return log;
+            }
+            rwLock.readLock().unlock();
+        }
+    }
+
+
+    private RoomLog hydrate(String room, boolean create) throws IOException {
+        // 在房间锁内加载：同一房间不会被并发加载两次，也不会与该房间的追加交错
+        synchronized (roomLock(room)) {
+            RoomLog existing = rooms.get(room);
+            if (existing != null) {
+                return existing;
+            }
+            List<PendingMessage> loaded = new ArrayList<>();
+            if (roomLoader != null) {
+                // 加载失败时不能建空房间：新消息会从 id 1 开始，与日志中已有的位置冲突
+                roomLoader.load(room, (sender, text, ts) -> loaded.add(new PendingMessage(sender, text, ts)));
+            }
+            if (loaded.isEmpty() && !create) {
+                return null;
+            }
+            lockWrite(room);
+            try {
+                RoomLog log = new RoomLog(offHeap ? new DirectPayloadArena() : new HeapPayloadArena());
+                for (PendingMessage m : loaded) {
+                    log.append(m.sender, m.text.getBytes(StandardCharsets.UTF_8), m.timestamp);
+                }
+                rooms.put(room, log);
+                return log;
+            } finally {
+                rwLock.writeLock().unlock();
+            }
+        }
+    }
+
+
+    public List<String> getRecentMessages(String room, int count) throws IOException {
+        RoomLog log = openRead(room, true);
         try {
-            rooms.putIfAbsent(room, new ArrayList<>());
+            if (log == null) {
+                return new ArrayList<>();
+            }
+            int from = Math.max(0, log.size - Math.max(0, count));
+            List<String> out = new ArrayList<>(log.size - from);
+            for (HistoryEntry e : slice(log, from, log.size)) {
+                out.add(e.format());
+            }
+            return out;
         } finally {
-            rwLock.writeLock().unlock();
+            rwLock.readLock().unlock();
         }
     }
 
 
-    public void addMessage(String room, String message) {
-        createRoom(room);
-        rwLock.writeLock().lock();
+    /**
+     * Up to {@code limit} messages with id &lt; {@code beforeId}, oldest first.
+     * The limit is capped at {@link #MAX_PAGE_SIZE}.
+     */
+    public HistoryPage getMessagesBefore(String room, long beforeId, int limit) throws IOException {
+        RoomLog log = openRead(room, true);
         try {
-            rooms.get(room).add(message);
+            if (log == null) {
+                return new HistoryPage(Collections.emptyList(), false);
+            }
+            long clamped = Math.max(log.firstId, Math.min(beforeId, log.lastId() + 1));
+            return pageBefore(log, (int) (clamped - log.firstId), limit);
         } finally {
-            rwLock.writeLock().unlock();
+            rwLock.readLock().unlock();
         }
     }
 
 
-    public List<String> getRecentMessages(String room, int count) {
-        rwLock.readLock().lock();
+    /**
+     * Up to {@code limit} messages with id &gt; {@code afterId}, oldest first.
+     * The limit is capped at {@link #MAX_PAGE_SIZE}.
+     */
+    public HistoryPage getMessagesAfter(String room, long afterId, int limit) throws IOException {
+        RoomLog log = openRead(room, true);
         try {
-            List<String> msgs = rooms.getOrDefault(room, new ArrayList<>());
-            int size = msgs.size();
-            int from = Math.max(0, size - count);
-            return new ArrayList<>(msgs.subList(from, size));
+            if (log == null) {
+                return new HistoryPage(Collections.emptyList(), false);
+            }
+            long clamped = Math.max(log.firstId - 1, Math.min(afterId, log.lastId()));
+            return pageAfter(log, (int) (clamped - log.firstId + 1), limit);
         } finally {
             rwLock.readLock().unlock();
         }
     }
 
 
+    /** Up to {@code limit} messages with timestamp &lt; {@code timestamp}, oldest first */
+    public HistoryPage getMessagesBeforeTime(String room, long timestamp, int limit) throws IOException {
+        RoomLog log = openRead(room, true);
+        try {
+            if (log == null) {
+                return new HistoryPage(Collections.emptyList(), false);
+            }
+            return pageBefore(log, log.lowerBound(timestamp), limit);
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+
+    /** Up to {@code limit} messages with timestamp &gt; {@code timestamp}, oldest first */
+    public HistoryPage getMessagesAfterTime(String room, long timestamp, int limit) throws IOException {
+        RoomLog log = openRead(room, true);
+        try {
+            if (log == null) {
+                return new HistoryPage(Collections.emptyList(), false);
+            }
+            return pageAfter(log, log.upperBound(timestamp), limit);
+        } finally {
+            rwLock.readLock().unlock();
+        }
+    }
+
+
+    /** Page ending just before position {@code end} */
+    private HistoryPage pageBefore(RoomLog log, int end, int limit) {
+        int n = clampLimit(limit);
+        int from = Math.max(0, end - n);
+        return new HistoryPage(slice(log, from, end), from > 0);
+    }
+
+
+    /** Page starting at position {@code start} */
+    private HistoryPage pageAfter(RoomLog log, int start, int limit) {
+        int n = clampLimit(limit);
+        int to = Math.min(log.size, start + n);
+        return new HistoryPage(slice(log, start, to), to < log.size);
+    }
+
+
+    private static int clampLimit(int limit) {
+        return Math.max(0, Math.min(limit, MAX_PAGE_SIZE));
+    }
+
+
     public List<String> listRooms() {
-        rwLock.readLock().lock();
+        lockRead(null);
         try {
             return new ArrayList<>(rooms.keySet());
         } finally {
@@ -56,12 +478,66 @@ public class DataStore {
     }
 
 
-    public void removeRoom(String room) {
-        rwLock.writeLock().lock();
+    /** Drop a room from memory; it is rehydrated from the log on next use */
+    public boolean evictRoom(String room) {
+        lockWrite(room);
+        try {
+            RoomLog log = rooms.remove(room);
+            if (log == null) {
+                return false;
+            }
+            log.release();
+            return true;
+        } finally {
+            rwLock.writeLock().unlock();
+        }
+    }
+
+
+    /**
+     * Evict rooms idle for longer than {@code idleTtlMillis}, then evict the
+     * least recently used rooms until resident history fits in
+     * {@code budgetBytes}. Rooms for which {@code pinned} is true are kept.
+     * Returns the evicted room names.
+     */
+    public List<String> evictIdle(long idleTtlMillis, long budgetBytes, Predicate<String> pinned) {
+        long now = System.currentTimeMillis();
+        List<String> evicted = new ArrayList<>();
+        lockWrite(null);
         try {
-            rooms.remove(room);
+            List<Map.Entry<String, RoomLog>> byAge = new ArrayList<>(rooms.entrySet());
+            byAge.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+            long total = 0;
+            for (Map.Entry<String, RoomLog> e : byAge) {
+                total += e.getValue().footprint();
+            }
+            for (Map.Entry<String, RoomLog> e : byAge) {
+                boolean idle = now - e.getValue().lastAccess > idleTtlMillis;
+                if ((idle || total > budgetBytes) && !pinned.test(e.getKey())) {
+                    rooms.remove(e.getKey());
+                    total -= e.getValue().footprint();
+                    e.getValue().release();
+                    evicted.add(e.getKey());
+                }
+            }
         } finally {
             rwLock.writeLock().unlock();
         }
+        return evicted;
+    }
+
+
+    /** Approximate bytes held by resident rooms */
+    public long residentBytes() {
+        lockRead(null);
+        try {
+            long total = 0;
+            for (RoomLog log : rooms.values()) {
+                total += log.footprint();
+            }
+            return total;
+        } finally {
+            rwLock.readLock().unlock();
+        }
     }
 }
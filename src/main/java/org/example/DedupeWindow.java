@@ -0,0 +1,138 @@
+package org.example;
+
+/**
+ * DedupeWindow remembers recently seen client message ids for one user,
+ * mapping each to the server id it was stored under.
+ *
+ * Entries are kept in primitive arrays only: an open-addressing long hash
+ * table (linear probing, backward-shift deletion) plus a ring buffer in
+ * insertion order, used to expire entries older than the TTL or beyond
+ * {@code maxEntries}. Both start small and grow on demand. Not thread-safe;
+ * callers synchronize on the window.
+ */
+public class DedupeWindow {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    private long[] keys = new long[INITIAL_CAPACITY * 2];      // 0 表示空槽
+    private long[] values = new long[INITIAL_CAPACITY * 2];
+    private long[] ringIds = new long[INITIAL_CAPACITY];
+    private long[] ringTimes = new long[INITIAL_CAPACITY];
+    private int head;
+    private int size;
+
+    public DedupeWindow(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /** Server id previously recorded for {@code clientId}, or -1 */
+    public long get(long clientId, long now) {
+        expire(now);
+        int slot = find(clientId);
+        return slot >= 0 ? values[slot] : -1;
+    }
+
+    /** Remember that {@code clientId} was stored as {@code serverId}; clientId must be non-zero */
+    public void put(long clientId, long serverId, long now) {
+        expire(now);
+        if (find(clientId) >= 0) {
+            return;
+        }
+        if (size == maxEntries) {
+            removeOldest();
+        }
+        if (size == ringIds.length) {
+            grow();
+        }
+        int tail = (head + size) % ringIds.length;
+        ringIds[tail] = clientId;
+        ringTimes[tail] = now;
+        size++;
+        insert(clientId, serverId);
+    }
+
+    public boolean isEmpty(long now) {
+        expire(now);
+        return size == 0;
+    }
+
+    private void expire(long now) {
+        while (size > 0 && now - ringTimes[head] > ttlMillis) {
+            removeOldest();
+        }
+    }
+
+    private void removeOldest() {
+        delete(ringIds[head]);
+        head = (head + 1) % ringIds.length;
+        size--;
+    }
+
+    private static int hash(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key, mask); keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) return i;
+        }
+        return -1;
+    }
+
+    private void insert(long key, long value) {
+        int mask = keys.length - 1;
+        int i = hash(key, mask);
+        while (keys[i] != 0) i = (i + 1) & mask;
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    /** Backward-shift deletion keeps probe chains intact without tombstones */
+    private void delete(long key) {
+        int mask = keys.length - 1;
+        int i = find(key);
+        if (i < 0) return;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == 0) break;
+            int home = hash(keys[j], mask);
+            // j 处的元素若其理想位置不在 (i, j] 区间内，则可前移到 i
+            boolean movable = i <= j ? (home <= i || home > j) : (home <= i && home > j);
+            if (movable) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = 0;
+        values[i] = 0;
+    }
+
+    /** Double the ring and the table (table stays at load factor &lt;= 0.5) */
+    private void grow() {
+        int cap = ringIds.length * 2;
+        long[] ids = new long[cap];
+        long[] times = new long[cap];
+        for (int k = 0; k < size; k++) {
+            int from = (head + k) % ringIds.length;
+            ids[k] = ringIds[from];
+            times[k] = ringTimes[from];
+        }
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new long[cap * 2];
+        values = new long[cap * 2];
+        for (int k = 0; k < oldKeys.length; k++) {
+            if (oldKeys[k] != 0) insert(oldKeys[k], oldValues[k]);
+        }
+        ringIds = ids;
+        ringTimes = times;
+        head = 0;
+    }
+}
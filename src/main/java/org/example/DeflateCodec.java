@@ -0,0 +1,62 @@
+package org.example;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Raw deflate block codec (java.util.zip), no per-block zlib header.
+ */
+public class DeflateCodec implements BlockCodec {
+    private static final int LEVEL = Deflater.BEST_SPEED;
+
+    @Override
+    public String name() {
+        return "deflate";
+    }
+
+    @Override
+    public byte[] compress(byte[] raw) {
+        Deflater deflater = new Deflater(LEVEL, true);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, raw.length / 2));
+            byte[] buf = new byte[8192];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte[] decompress(byte[] data, int rawLength) throws IOException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            byte[] raw = new byte[rawLength];
+            int off = 0;
+            while (off < rawLength) {
+                int n = inflater.inflate(raw, off, rawLength - off);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                off += n;
+            }
+            if (off != rawLength) {
+                throw new IOException("Corrupt deflate block: expected " + rawLength + " bytes, got " + off);
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt deflate block", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.example;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap arena built from chunked direct ByteBuffers, so retained chat
+ * history does not live in the GC heap. Chunks start small and double up to
+ * {@link #MAX_CHUNK} so quiet rooms stay cheap; a payload never spans two
+ * chunks. The handle packs (chunk index &lt;&lt; 32 | offset in chunk).
+ * <p>
+ * Direct memory is only returned to the OS when the GC collects the small
+ * heap-side ByteBuffer objects, which rarely happens once history is
+ * off-heap. {@link #release()} therefore hands the chunks of an evicted room
+ * to a shared pool (bounded by {@link #POOL_MAX_BYTES}) that new arenas take
+ * from before allocating.
+ */
+public class DirectPayloadArena implements PayloadArena {
+    private static final int MIN_CHUNK = 4 * 1024;
+    private static final int MAX_CHUNK = 1024 * 1024;
+    private static final long POOL_MAX_BYTES = 64L * 1024 * 1024;
+
+    // 每种标准块大小（MIN_CHUNK 的 2^i 倍）一个空闲队列
+    private static final int SIZE_CLASSES = Integer.numberOfTrailingZeros(MAX_CHUNK / MIN_CHUNK) + 1;
+    private static final List<ConcurrentLinkedQueue<ByteBuffer>> pool = new ArrayList<>();
+    private static final AtomicLong pooledBytes = new AtomicLong();
+
+    static {
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            pool.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer current;
+    private int used;
+
+    @Override
+    public long append(byte[] bytes) {
+        if (current == null || used + bytes.length > current.capacity()) {
+            int next = current == null ? MIN_CHUNK : Math.min(current.capacity() * 2, MAX_CHUNK);
+            // 超大消息单独占一个块
+            current = bytes.length > next ? ByteBuffer.allocateDirect(bytes.length) : take(next);
+            chunks.add(current);
+            used = 0;
+        }
+        current.put(used, bytes);
+        long handle = ((long) (chunks.size() - 1) << 32) | used;
+        used += bytes.length;
+        return handle;
+    }
+
+    @Override
+    public String decode(long handle, int length) {
+        ByteBuffer chunk = chunks.get((int) (handle >>> 32));
+        byte[] bytes = new byte[length];
+        // 绝对位置读取，不修改 position，可与其他读者并发
+        chunk.get((int) handle, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public long footprint() {
+        long total = 0;
+        for (ByteBuffer chunk : chunks) {
+            total += chunk.capacity();
+        }
+        return total;
+    }
+
+    @Override
+    public void release() {
+        for (ByteBuffer chunk : chunks) {
+            give(chunk);
+        }
+        chunks.clear();
+        current = null;
+        used = 0;
+    }
+
+    /** Bytes currently held in the shared chunk pool */
+    public static long pooledBytes() {
+        return pooledBytes.get();
+    }
+
+    private static int sizeClass(int capacity) {
+        if (capacity < MIN_CHUNK || capacity > MAX_CHUNK || Integer.bitCount(capacity) != 1) {
+            return -1;
+        }
+        return Integer.numberOfTrailingZeros(capacity / MIN_CHUNK);
+    }
+
+    private static ByteBuffer take(int capacity) {
+        ByteBuffer chunk = pool.get(sizeClass(capacity)).poll();
+        if (chunk == null) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        pooledBytes.addAndGet(-capacity);
+        // 复用的块不清零：读取只访问本 arena 写入过的区间
+        return chunk;
+    }
+
+    private static void give(ByteBuffer chunk) {
+        int cls = sizeClass(chunk.capacity());
+        // 超大消息的非标准块和超出池上限的块留给 GC
+        if (cls < 0 || pooledBytes.addAndGet(chunk.capacity()) > POOL_MAX_BYTES) {
+            if (cls >= 0) {
+                pooledBytes.addAndGet(-chunk.capacity());
+            }
+            return;
+        }
+        pool.get(cls).offer(chunk);
+    }
+}
@@ -0,0 +1,39 @@
+package org.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * On-heap arena: all payloads of a room packed into one growable byte[].
+ * The handle is simply the offset into that array.
+ */
+public class HeapPayloadArena implements PayloadArena {
+    private byte[] data = new byte[256];
+    private int size;
+
+    @Override
+    public long append(byte[] bytes) {
+        if (size + bytes.length > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + bytes.length));
+        }
+        System.arraycopy(bytes, 0, data, size, bytes.length);
+        int offset = size;
+        size += bytes.length;
+        return offset;
+    }
+
+    @Override
+    public String decode(long handle, int length) {
+        return new String(data, (int) handle, length, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public long footprint() {
+        return data.length;
+    }
+
+    @Override
+    public void release() {
+        // 堆内数组随 RoomLog 一起被 GC 回收
+    }
+}
@@ -0,0 +1,179 @@
+package org.example;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Mass join/leave against continuous broadcast: the writer thread fills a
+ * room to {@code members} and empties it again (in random order) while
+ * broadcaster threads iterate the membership the whole time. Reports the
+ * writer's time and allocated bytes and the broadcasters' delivery rate,
+ * for {@link CopyOnWriteArrayList} and {@link MembershipSet}.
+ *
+ * A second pass measures the whole JOIN bookkeeping without broadcasters:
+ * avatar id assignment, the roster sent to the new client and the
+ * membership add, then the matching leave. The old path used a
+ * CopyOnWriteArrayList of names with indexOf per listed user; the current
+ * one is {@link RoomRoster} plus {@link MembershipSet}.
+ *
+ * Usage: MembershipBenchmark [members] [broadcasters] [rounds]
+ */
+public class MembershipBenchmark {
+    private static volatile boolean stopped;
+
+    /** The operations the server needs from a room's membership */
+    private interface Room extends Iterable<Object> {
+        void add(Object member);
+        void remove(Object member);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int members      = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        int broadcasters = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int rounds       = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+        System.out.printf("members=%d broadcasters=%d rounds=%d%n", members, broadcasters, rounds);
+        for (int warm = 0; warm < 2; warm++) {
+            boolean print = warm == 1;
+            run("CopyOnWriteArrayList", members, broadcasters, rounds, print, () -> {
+                CopyOnWriteArrayList<Object> list = new CopyOnWriteArrayList<>();
+                return new Room() {
+                    public void add(Object m) { list.add(m); }
+                    public void remove(Object m) { list.remove(m); }
+                    public Iterator<Object> iterator() { return list.iterator(); }
+                };
+            });
+            run("MembershipSet", members, broadcasters, rounds, print, () -> {
+                MembershipSet<Object> set = new MembershipSet<>();
+                return new Room() {
+                    public void add(Object m) { set.add(m); }
+                    public void remove(Object m) { set.remove(m); }
+                    public Iterator<Object> iterator() { return set.iterator(); }
+                };
+            });
+        }
+        // 旧路径是立方级的，单轮已足够长，不再预热
+        {
+            boolean print = true;
+            runJoins("JOIN list+indexOf", members, print, () -> {
+                CopyOnWriteArrayList<String> names = new CopyOnWriteArrayList<>();
+                CopyOnWriteArrayList<Object> clients = new CopyOnWriteArrayList<>();
+                return new JoinPath() {
+                    public long join(String user, Object client) {
+                        if (!names.contains(user)) names.add(user);
+                        long bytes = 0;
+                        for (String existing : names) {
+                            bytes += ("USERJOIN|" + existing + "|" + names.indexOf(existing)).length();
+                        }
+                        clients.add(client);
+                        return bytes;
+                    }
+                    public void leave(String user, Object client) {
+                        // 旧实现从不移除用户名
+                        clients.remove(client);
+                    }
+                };
+            });
+            runJoins("JOIN RoomRoster", members, print, () -> {
+                RoomRoster roster = new RoomRoster();
+                MembershipSet<Object> clients = new MembershipSet<>();
+                return new JoinPath() {
+                    public long join(String user, Object client) {
+                        roster.join(user, client);
+                        long bytes = 0;
+                        for (Map.Entry<String, Integer> e : roster.snapshot().entrySet()) {
+                            bytes += ("USERJOIN|" + e.getKey() + "|" + e.getValue()).length();
+                        }
+                        clients.add(client);
+                        return bytes;
+                    }
+                    public void leave(String user, Object client) {
+                        clients.remove(client);
+                        roster.leave(user, client);
+                    }
+                };
+            });
+        }
+    }
+
+    /** The server-side bookkeeping of one JOIN and one leave */
+    private interface JoinPath {
+        /** Returns the size of the roster lines sent to the joining client */
+        long join(String user, Object client);
+        void leave(String user, Object client);
+    }
+
+    private static void runJoins(String name, int members, boolean print, Supplier<JoinPath> factory) {
+        JoinPath room = factory.get();
+        Object[] clients = new Object[members];
+        String[] users = new String[members];
+        for (int i = 0; i < members; i++) {
+            clients[i] = new Object();
+            users[i] = "user" + i;
+        }
+        long start = System.nanoTime();
+        long bytes = 0;
+        for (int i = 0; i < members; i++) bytes += room.join(users[i], clients[i]);
+        for (int i = 0; i < members; i++) room.leave(users[i], clients[i]);
+        long elapsed = System.nanoTime() - start;
+        if (print) {
+            System.out.printf("%-22s fill+empty %,8d ms  roster bytes %,d%n", name, elapsed / 1_000_000, bytes);
+        }
+    }
+
+    private static void run(String name, int members, int broadcasters, int rounds, boolean print,
+                            Supplier<Room> factory) throws InterruptedException {
+        Room room = factory.get();
+        Object[] clients = new Object[members];
+        for (int i = 0; i < members; i++) clients[i] = new Object();
+        Object[] leaveOrder = clients.clone();
+        Collections.shuffle(Arrays.asList(leaveOrder), new Random(42));
+
+        LongAdder delivered = new LongAdder();
+        LongAdder broadcasts = new LongAdder();
+        Consumer<Object> sink = m -> { };
+        stopped = false;
+        Thread[] readers = new Thread[broadcasters];
+        for (int b = 0; b < broadcasters; b++) {
+            readers[b] = new Thread(() -> {
+                while (!stopped) {
+                    long n = 0;
+                    for (Object peer : room) {
+                        sink.accept(peer);
+                        n++;
+                    }
+                    delivered.add(n);
+                    broadcasts.increment();
+                }
+            });
+            readers[b].start();
+        }
+
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        long allocBefore = mx.getThreadAllocatedBytes(tid);
+        long start = System.nanoTime();
+        for (int r = 0; r < rounds; r++) {
+            for (Object c : clients) room.add(c);
+            for (Object c : leaveOrder) room.remove(c);
+        }
+        long elapsed = System.nanoTime() - start;
+        long alloc = mx.getThreadAllocatedBytes(tid) - allocBefore;
+        stopped = true;
+        for (Thread t : readers) t.join();
+
+        if (print) {
+            long ops = 2L * members * rounds;
+            System.out.printf("%-22s join+leave %,10.0f ops/s  writer alloc %,8d KiB  broadcasts %,d  deliveries/s %,.0f%n",
+                    name, ops / (elapsed / 1e9), alloc / 1024, broadcasts.sum(), delivered.sum() / (elapsed / 1e9));
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Room membership set built for join/leave storms. Members live in
+ * fixed-capacity segments; a join or leave copies only the one segment it
+ * touches (at most {@link #SEGMENT_SIZE} references) instead of the whole
+ * member array, and the segment directory is copied only when a segment is
+ * created or dropped.
+ *
+ * Iteration is lock-free and weakly consistent: it walks the directory and
+ * segment arrays that were current when it reached them, sees every member
+ * present throughout exactly once and never throws on concurrent
+ * modification. Writers are serialized on the set. Members are compared by
+ * identity.
+ */
+public class MembershipSet<T> implements Iterable<T> {
+    static final int SEGMENT_SIZE = 64;
+
+    private static final class Segment {
+        volatile Object[] members = new Object[0];
+    }
+
+    private static final Segment[] NO_SEGMENTS = new Segment[0];
+
+    private volatile Segment[] directory = NO_SEGMENTS;
+    private volatile int size;
+
+    // 以下仅在持有 this 锁时访问
+    private final Map<T, Segment> index = new IdentityHashMap<>();
+    private final List<Segment> notFull = new ArrayList<>();
+
+    /** Add a member; returns false if it was already present */
+    public synchronized boolean add(T member) {
+        if (index.containsKey(member)) {
+            return false;
+        }
+        Segment seg;
+        if (notFull.isEmpty()) {
+            seg = new Segment();
+            Segment[] dir = directory;
+            Segment[] next = Arrays.copyOf(dir, dir.length + 1);
+            next[dir.length] = seg;
+            directory = next;
+            notFull.add(seg);
+        } else {
+            seg = notFull.get(notFull.size() - 1);
+        }
+        Object[] cur = seg.members;
+        Object[] next = Arrays.copyOf(cur, cur.length + 1);
+        next[cur.length] = member;
+        seg.members = next;
+        if (next.length == SEGMENT_SIZE) {
+            notFull.remove(notFull.size() - 1);
+        }
+        index.put(member, seg);
+        size++;
+        return true;
+    }
+
+    /** Remove a member; returns false if it was not present */
+    public synchronized boolean remove(T member) {
+        Segment seg = index.remove(member);
+        if (seg == null) {
+            return false;
+        }
+        Object[] cur = seg.members;
+        if (cur.length == 1) {
+            // 段被清空：从目录中摘除，避免大量离开后遍历空段
+            dropSegment(seg);
+        } else {
+            Object[] next = new Object[cur.length - 1];
+            int j = 0;
+            for (Object m : cur) {
+                if (m != member) next[j++] = m;
+            }
+            seg.members = next;
+            if (cur.length == SEGMENT_SIZE) {
+                notFull.add(seg);
+            }
+        }
+        size--;
+        return true;
+    }
+
+    private void dropSegment(Segment seg) {
+        Segment[] dir = directory;
+        Segment[] next = new Segment[dir.length - 1];
+        int j = 0;
+        for (Segment s : dir) {
+            if (s != seg) next[j++] = s;
+        }
+        directory = next;
+        notFull.remove(seg);
+        seg.members = new Object[0];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        Segment[] dir = directory;
+        return new Iterator<T>() {
+            int segIdx = 0;
+            Object[] cur = new Object[0];
+            int pos = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (pos >= cur.length) {
+                    if (segIdx >= dir.length) return false;
+                    cur = dir[segIdx++].members;
+                    pos = 0;
+                }
+                return true;
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public T next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                return (T) cur[pos++];
+            }
+        };
+    }
+}
@@ -3,71 +3,458 @@ package org.example;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.File;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * MessageHelper provides CSV-based persistence for chat history.
+ * The active log is a plain CSV that is appended per message; once it grows
+ * past {@link #SEGMENT_BYTES} it is sealed into a compressed segment made of
+ * per-room blocks (see {@link CompressedBlocks}). Backups use the same block
+ * format unless compression is disabled with -Ddschat.codec=none.
  */
 public class MessageHelper {
-    private static DataStore store;
     private static final String HISTORY_FILE = "chat_history.csv";
     private static final String BACKUP_DIR = "backups/";
+    private static final String SEGMENT_DIR = "history_segments/";
+    private static final long SEGMENT_BYTES = 1024 * 1024;
+    private static final int BLOCK_LINES = 1024;
+    private static final BlockCodec codec = BlockCodec.configured();
+    // 追加与段封存互斥，避免封存时丢失正在写入的行
+    private static final Object logLock = new Object();
+    // 每封存一次加一（受 logLock 保护）；不持锁读取日志的一方据此发现读取期间发生了封存
+    private static long sealCount;
+    // 日志中出现过的房间名（受 logLock 保护地更新）；为 null 时表示尚未建立，只能全量扫描
+    private static volatile Set<String> roomIndex;
 
-    /** Bind the shared DataStore */
+    /**
+     * Bind the shared DataStore: it appends every message to the log and
+     * hydrates evicted rooms from it. Also indexes the room names in the log
+     * (block headers only), so rooms that were never written skip the scan.
+     */
     public static void initialize(DataStore dataStore) {
-        store = dataStore;
+        dataStore.setRoomLoader(MessageHelper::loadRoom);
+        dataStore.setPersister(MessageHelper::appendMessage);
+        try {
+            indexRooms();
+        } catch (IOException e) {
+            System.err.println("[MessageHelper] Failed to index rooms, every lookup will scan the log: " + e.getMessage());
+        }
     }
 
-    /** Load existing history into memory (skips if no file) */
-    public static void loadHistory() throws IOException {
-        File file = new File(HISTORY_FILE);
-        if (!file.exists()) {
-            System.err.println("[MessageHelper] History file not found: skipping load");
+    /** Collect the room names present in the segments and the active CSV */
+    private static void indexRooms() throws IOException {
+        synchronized (logLock) {
+            Set<String> names = ConcurrentHashMap.newKeySet();
+            for (File segment : listSegments()) {
+                // 只读块头，收集房间名，不解压
+                readBlockFile(segment, room -> { names.add(room); return false; }, line -> {});
+            }
+            readActive(Long.MAX_VALUE, line -> {
+                String[] rec = parseRecord(line);
+                if (rec != null) {
+                    names.add(rec[0]);
+                }
+            });
+            roomIndex = names;
+        }
+    }
+
+    /**
+     * Read one room back from the log: its blocks in each sealed segment
+     * (other rooms' blocks are skipped without decompression), then its rows
+     * in the active CSV. Rooms missing from the index return at once. The log
+     * lock is only held to snapshot the segment list and the active file
+     * length, so appends to other rooms are not blocked by the scan; the
+     * caller (DataStore, under the room lock) keeps this room from growing.
+     */
+    public static void loadRoom(String room, DataStore.MessageSink sink) throws IOException {
+        Set<String> index = roomIndex;
+        if (index != null && !index.contains(room)) {
+            return;
+        }
+        List<String[]> records = new ArrayList<>();
+        Consumer<String> collect = line -> {
+            String[] rec = parseRecord(line);
+            if (rec != null && rec[0].equals(room)) {
+                records.add(rec);
+            }
+        };
+        while (true) {
+            List<File> segments;
+            long activeLength;
+            long seals;
+            synchronized (logLock) {
+                segments = listSegments();
+                activeLength = new File(HISTORY_FILE).length();
+                seals = sealCount;
+            }
+            for (File segment : segments) {
+                readBlockFile(segment, room::equals, collect);
+            }
+            readActive(activeLength, collect);
+            synchronized (logLock) {
+                if (sealCount == seals) {
+                    break;
+                }
+            }
+            // 读取期间活动日志被封存为新段：快照已失效，重新读取
+            records.clear();
+        }
+        for (String[] rec : records) {
+            sink.accept(rec[1], rec[2], Long.parseLong(rec[3]));
+        }
+    }
+
+    /** Stream the first {@code length} bytes of the active CSV, line by line */
+    private static void readActive(long length, Consumer<String> consumer) throws IOException {
+        if (length <= 0) {
             return;
         }
-        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+        // NIO 打开的文件在 Windows 上也允许封存时删除
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new BoundedInputStream(Files.newInputStream(Paths.get(HISTORY_FILE)), length)))) {
             String line;
             while ((line = reader.readLine()) != null) {
-                // CSV format: "room",timestamp,"message"
-                String[] parts = line.split("\",\"");
-                if (parts.length >= 3) {
-                    String room = parts[0].replaceFirst("^\"", "");
-                    String message = parts[2].replaceFirst("\"$", "");
-                    store.addMessage(room, message);
-                }
+                consumer.accept(line);
             }
+        } catch (NoSuchFileException e) {
+            // 已被封存，由调用方根据 sealCount 重新读取
         }
     }
 
-    /** Backup in-memory history into timestamped CSV, ensuring directory exists */
+    /** Parse a history row into {room, sender, text, timestamp}, or null if malformed */
+    private static String[] parseRecord(String line) {
+        // CSV format: "room",timestamp,"sender","text"  (legacy: "room",timestamp,"user: msg")
+        List<String> fields = parseCsvLine(line);
+        if (fields.size() < 3) {
+            return null;
+        }
+        try {
+            Long.parseLong(fields.get(1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        String sender;
+        String text;
+        if (fields.size() >= 4) {
+            sender = fields.get(2);
+            text = fields.get(3);
+        } else {
+            String legacy = fields.get(2);
+            int sep = legacy.indexOf(": ");
+            sender = sep > 0 ? legacy.substring(0, sep) : "";
+            text = sep > 0 ? legacy.substring(sep + 2) : legacy;
+        }
+        return new String[] {fields.get(0), sender, text, fields.get(1)};
+    }
+
+    /**
+     * Backup the whole history into a timestamped file, ensuring the directory
+     * exists. It is copied from the log (sealed segments, then the active
+     * CSV), so rooms that are not resident in memory are included.
+     */
     public static void backupHistory() throws IOException {
         new File(BACKUP_DIR).mkdirs();
-        String backupFile = BACKUP_DIR + "history_" + System.currentTimeMillis() + ".csv";
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(backupFile))) {
-            for (String room : store.listRooms()) {
-                List<String> msgs = store.getRecentMessages(room, Integer.MAX_VALUE);
-                for (String msg : msgs) {
-                    // escape quotes, wrap in quotes
-                    String escRoom = room.replace("\"", "\"\"");
-                    String escMsg = msg.replace("\"", "\"\"");
-                    writer.write("\"" + escRoom + "\"," + System.currentTimeMillis() + ",\"" + escMsg + "\"\n");
+        boolean compressed = codec != BlockCodec.NONE;
+        String backupFile = BACKUP_DIR + "history_" + System.currentTimeMillis() + (compressed ? ".dsz" : ".csv");
+        ChatEvents.Backup event = new ChatEvents.Backup();
+        event.begin();
+        int rooms = writeBackup(backupFile, compressed);
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = backupFile;
+            event.rooms = rooms;
+            event.size = new File(backupFile).length();
+            event.commit();
+        }
+    }
+
+    /** Copy the log into {@code backupFile}; returns the number of rooms */
+    private static int writeBackup(String backupFile, boolean compressed) throws IOException {
+        while (true) {
+            List<File> segments;
+            long activeLength;
+            long seals;
+            synchronized (logLock) {
+                segments = listSegments();
+                activeLength = new File(HISTORY_FILE).length();
+                seals = sealCount;
+            }
+            // 不持有 logLock 复制：段文件不可变，活动日志只读到快照长度
+            Set<String> rooms = new HashSet<>();
+            if (compressed) {
+                try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(backupFile)))) {
+                    CompressedBlocks.writeHeader(out, codec);
+                    // 段中的块已按相同编码压缩：原样复制，只有活动日志需要压缩
+                    copyLog(segments, activeLength, raw -> {
+                        rooms.add(raw.key);
+                        CompressedBlocks.writeRawBlock(out, raw);
+                    }, (room, lines) -> {
+                        rooms.add(room);
+                        CompressedBlocks.writeBlock(out, codec, room, lines);
+                    });
+                }
+            } else {
+                try (BufferedWriter writer = new BufferedWriter(new FileWriter(backupFile))) {
+                    copyLog(segments, activeLength, null, (room, lines) -> {
+                        rooms.add(room);
+                        for (String line : lines) {
+                            writer.write(line);
+                            writer.write("\n");
+                        }
+                    });
+                }
+            }
+            synchronized (logLock) {
+                if (sealCount == seals) {
+                    return rooms.size();
                 }
             }
+            // 复制期间活动日志被封存为新段：重新生成备份
+        }
+    }
+
+    /**
+     * Feed the log to the sinks: every block of each segment, then the active
+     * rows grouped by room. Segment blocks written with the configured codec
+     * go to {@code rawSink} still encoded when it is given; the rest are
+     * decoded for {@code sink}.
+     */
+    private static void copyLog(List<File> segments, long activeLength, RawBlockSink rawSink, BlockSink sink) throws IOException {
+        for (File segment : segments) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment)))) {
+                BlockCodec segmentCodec = CompressedBlocks.readHeader(in);
+                if (rawSink != null && segmentCodec.name().equals(codec.name())) {
+                    CompressedBlocks.RawBlock raw;
+                    while ((raw = CompressedBlocks.readRawBlock(in)) != null) {
+                        rawSink.accept(raw);
+                    }
+                    continue;
+                }
+                // 段按另一种编码写成（例如 dschat.codec 改过）：解码后交给 sink 重新编码
+                CompressedBlocks.Block block;
+                while ((block = CompressedBlocks.readBlock(in, segmentCodec, null)) != null) {
+                    sink.accept(block.key, block.lines);
+                }
+            }
+        }
+        writeRoomBlocks(activeByRoom(activeLength), sink);
+    }
+
+    /** Seal the active CSV into a compressed segment once it exceeds SEGMENT_BYTES */
+    public static boolean compactIfNeeded() throws IOException {
+        if (new File(HISTORY_FILE).length() < SEGMENT_BYTES) {
+            return false;
+        }
+        return compactHistory();
+    }
+
+    /**
+     * Seal the active CSV into a new segment of per-room compressed blocks
+     * and start a fresh active file. Returns false if there was nothing to seal.
+     */
+    public static boolean compactHistory() throws IOException {
+        synchronized (logLock) {
+            File active = new File(HISTORY_FILE);
+            if (!active.exists() || active.length() == 0) {
+                return false;
+            }
+            Map<String, List<String>> byRoom = activeByRoom(active.length());
+            File dir = new File(SEGMENT_DIR);
+            dir.mkdirs();
+            List<File> existing = listSegments();
+            int next = existing.isEmpty() ? 1 : segmentIndex(existing.get(existing.size() - 1)) + 1;
+            File segment = new File(dir, String.format("segment_%08d.dsz", next));
+            File tmp = new File(dir, segment.getName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                CompressedBlocks.writeHeader(out, codec);
+                writeRoomBlocks(byRoom, (room, lines) -> CompressedBlocks.writeBlock(out, codec, room, lines));
+            }
+            Files.move(tmp.toPath(), segment.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(active.toPath());
+            sealCount++;
+            return true;
+        }
+    }
+
+    /** The first {@code length} bytes of the active CSV grouped by room, each room's rows in log order */
+    private static Map<String, List<String>> activeByRoom(long length) throws IOException {
+        // 房间内保持原有顺序（消息 id 依赖该顺序）
+        Map<String, List<String>> byRoom = new LinkedHashMap<>();
+        readActive(length, line -> {
+            List<String> fields = parseCsvLine(line);
+            if (fields.size() >= 3) {
+                byRoom.computeIfAbsent(fields.get(0), r -> new ArrayList<>()).add(line);
+            }
+        });
+        return byRoom;
+    }
+
+    /** Receives one block of a room's rows */
+    private interface BlockSink {
+        void accept(String room, List<String> lines) throws IOException;
+    }
+
+    /** Receives one segment block still in its encoded form */
+    private interface RawBlockSink {
+        void accept(CompressedBlocks.RawBlock block) throws IOException;
+    }
+
+    /** Pass each room's rows to {@code sink} in blocks of at most BLOCK_LINES */
+    private static void writeRoomBlocks(Map<String, List<String>> byRoom, BlockSink sink) throws IOException {
+        for (Map.Entry<String, List<String>> e : byRoom.entrySet()) {
+            List<String> lines = e.getValue();
+            for (int i = 0; i < lines.size(); i += BLOCK_LINES) {
+                sink.accept(e.getKey(), lines.subList(i, Math.min(lines.size(), i + BLOCK_LINES)));
+            }
+        }
+    }
+
+    /** Sealed segments in write order */
+    private static List<File> listSegments() {
+        File[] files = new File(SEGMENT_DIR).listFiles((d, name) -> name.startsWith("segment_") && name.endsWith(".dsz"));
+        List<File> segments = new ArrayList<>();
+        if (files != null) {
+            segments.addAll(Arrays.asList(files));
+            segments.sort(Comparator.comparing(File::getName));
+        }
+        return segments;
+    }
+
+    private static int segmentIndex(File segment) {
+        String name = segment.getName();
+        return Integer.parseInt(name.substring("segment_".length(), name.length() - ".dsz".length()));
+    }
+
+    /**
+     * Stream the lines of a block file to {@code consumer}; blocks whose room is
+     * rejected by {@code roomFilter} are skipped without decompression.
+     */
+    private static void readBlockFile(File file, Predicate<String> roomFilter, Consumer<String> consumer) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            BlockCodec fileCodec = CompressedBlocks.readHeader(in);
+            CompressedBlocks.Block block;
+            while ((block = CompressedBlocks.readBlock(in, fileCodec, roomFilter)) != null) {
+                block.lines.forEach(consumer);
+            }
         }
     }
 
     /** Append one message to main history file, creating directories if needed */
-    public static void appendMessage(String room, String message) throws IOException {
+    public static void appendMessage(String room, String sender, String text, long timestamp) throws IOException {
         File file = new File(HISTORY_FILE);
         File dir = file.getParentFile();
         if (dir != null) dir.mkdirs();
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, true))) {
-            String escRoom = room.replace("\"", "\"\"");
-            String escMsg = message.replace("\"", "\"\"");
-            writer.write("\"" + escRoom + "\"," + System.currentTimeMillis() + ",\"" + escMsg + "\"\n");
+        String line = toCsvLine(room, timestamp, sender, text);
+        ChatEvents.Persist event = new ChatEvents.Persist();
+        event.begin();
+        synchronized (logLock) {
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(file, true))) {
+                writer.write(line);
+                writer.write("\n");
+            }
+            Set<String> index = roomIndex;
+            if (index != null) {
+                index.add(room);
+            }
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.room = room;
+            event.size = line.length();
+            event.commit();
+        }
+    }
+
+    /** Reads at most {@code remaining} bytes, so a concurrent append past the snapshot is not seen */
+    private static class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = super.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = super.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+    }
+
+    /** One history row without the line terminator (block lines are joined with '\n') */
+    private static String toCsvLine(String room, long timestamp, String sender, String text) {
+        // escape quotes, wrap in quotes
+        return quote(room) + "," + timestamp + "," + quote(sender) + "," + quote(text);
+    }
+
+    private static String quote(String field) {
+        return "\"" + field.replace("\"", "\"\"") + "\"";
+    }
+
+    /** Split one CSV line, honouring quoted fields and doubled-quote escapes */
+    static List<String> parseCsvLine(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder cur = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    if (i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                        cur.append('"');
+                        i++;
+                    } else {
+                        quoted = false;
+                    }
+                } else {
+                    cur.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(cur.toString());
+                cur.setLength(0);
+            } else {
+                cur.append(c);
+            }
         }
+        fields.add(cur.toString());
+        return fields;
     }
 }
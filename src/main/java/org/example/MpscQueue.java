@@ -0,0 +1,55 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Unbounded lock-free multi-producer / single-consumer queue (Vyukov style
+ * linked list). Any thread may {@link #offer}; only the owning consumer
+ * thread may call {@link #poll} and {@link #isEmpty}.
+ */
+final class MpscQueue<T> {
+    private static final class Node<T> {
+        T value;
+        volatile Node<T> next;
+    }
+
+    private final AtomicReference<Node<T>> tail;
+    private Node<T> head;   // 仅消费者线程访问，始终指向已消费的哨兵节点
+
+    MpscQueue() {
+        Node<T> stub = new Node<>();
+        head = stub;
+        tail = new AtomicReference<>(stub);
+    }
+
+    void offer(T value) {
+        Node<T> node = new Node<>();
+        node.value = value;
+        // 一次 getAndSet 即完成入队排序，再把前驱链接到新节点
+        Node<T> prev = tail.getAndSet(node);
+        prev.next = node;
+    }
+
+    /** Next element, or null when the queue is empty (consumer thread only) */
+    T poll() {
+        Node<T> next = head.next;
+        if (next == null) {
+            if (head == tail.get()) {
+                return null;
+            }
+            // 生产者已交换 tail 但尚未链接 next，短暂自旋等待
+            while ((next = head.next) == null) {
+                Thread.onSpinWait();
+            }
+        }
+        T value = next.value;
+        next.value = null;
+        head = next;
+        return value;
+    }
+
+    /** True if nothing has been offered since the last poll (consumer thread only) */
+    boolean isEmpty() {
+        return head == tail.get();
+    }
+}
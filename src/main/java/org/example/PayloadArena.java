@@ -0,0 +1,23 @@
+package org.example;
+
+/**
+ * PayloadArena stores the UTF-8 bytes of chat messages for one room.
+ * Callers keep only the returned handle and the payload length.
+ */
+public interface PayloadArena {
+
+    /** Copy {@code bytes} into the arena and return a handle to them */
+    long append(byte[] bytes);
+
+    /** Decode the payload stored at {@code handle} */
+    String decode(long handle, int length);
+
+    /** Bytes reserved by this arena, used for the memory budget */
+    long footprint();
+
+    /**
+     * Give the storage back once the room is evicted. Called under the
+     * DataStore write lock; the arena must not be used afterwards.
+     */
+    void release();
+}
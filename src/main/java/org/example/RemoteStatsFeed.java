@@ -0,0 +1,92 @@
+package org.example;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Stream;
+
+/**
+ * StatsFeed backed by a remote {@link AdminServer}: follows GET /events and
+ * reconnects when the stream drops; each new stream starts with a RESET
+ * event followed by a full snapshot. Requests carry the shared admin token
+ * when one is configured.
+ */
+public class RemoteStatsFeed implements StatsFeed {
+    private static final long RECONNECT_DELAY_MS = 2000;
+
+    private final String baseUrl;
+    private final String token;
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    private final ConcurrentLinkedQueue<ServerStats.Event> queue = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    /**
+     * @param hostPort admin endpoint as host:port
+     * @param token    value for the {@link AdminServer#TOKEN_HEADER} header, or null
+     */
+    public RemoteStatsFeed(String hostPort, String token) {
+        this.baseUrl = "http://" + hostPort;
+        this.token = token;
+        Thread reader = new Thread(this::follow, "RemoteStatsFeed");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void follow() {
+        while (!closed) {
+            HttpRequest.Builder req = HttpRequest.newBuilder(URI.create(baseUrl + "/events")).GET();
+            if (token != null) {
+                req.header(AdminServer.TOKEN_HEADER, token);
+            }
+            try {
+                HttpResponse<Stream<String>> resp = client.send(req.build(), HttpResponse.BodyHandlers.ofLines());
+                if (resp.statusCode() != 200) {
+                    resp.body().close();
+                    throw new IOException("HTTP " + resp.statusCode() + " from /events");
+                }
+                try (Stream<String> lines = resp.body()) {
+                    lines.takeWhile(l -> !closed).forEach(line -> {
+                        ServerStats.Event e = ServerStats.Event.fromLine(line);
+                        if (e != null) queue.offer(e);
+                    });
+                }
+            } catch (IOException e) {
+                queue.offer(ServerStats.Event.log("[Dashboard] Admin feed error: " + e.getMessage()));
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public ServerStats.Event poll() {
+        return queue.poll();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    /** POST an admin command such as "/backup" and return the response body */
+    public String command(String pathAndQuery) throws IOException, InterruptedException {
+        HttpRequest.Builder req = HttpRequest.newBuilder(URI.create(baseUrl + pathAndQuery))
+                .POST(HttpRequest.BodyPublishers.noBody());
+        if (token != null) {
+            req.header(AdminServer.TOKEN_HEADER, token);
+        }
+        HttpResponse<String> resp = client.send(req.build(), HttpResponse.BodyHandlers.ofString());
+        return resp.statusCode() + " " + resp.body().trim();
+    }
+}
@@ -1,38 +1,153 @@
 package org.example;
-import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-
-
-import java.io.PrintWriter;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.ArrayList;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.concurrent.ScheduledExecutorService;
-import java.net.ServerSocket;
-import java.util.concurrent.ExecutorService;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * ReplicaNode pushes chat log entries to one follower. Entries are queued and
+ * a background thread sends them in batches over a persistent connection;
+ * each batch is one compressed block unless -Ddschat.codec=none, in which
+ * case the plain-text line protocol is used. Entries carry the leader's id
+ * and timestamp ({@link #FORMAT_V2}), so followers store the real values
+ * and can skip entries they already applied. A batch that fails is kept and
+ * resent after reconnecting (with backoff) rather than dropped; an idle
+ * connection carries an empty heartbeat batch every {@link #HEARTBEAT_MS}.
+ */
 public class ReplicaNode {
+    /**
+     * Block key (or first line, in plain-text mode) announcing entries of the
+     * form room|id|timestamp|sender|text; legacy entries are room|sender|text.
+     */
+    public static final String FORMAT_V2 = "v2";
+    /** Interval of the empty batch sent on an idle connection; followers time out after a few missed */
+    public static final long HEARTBEAT_MS = 30_000;
+    private static final int MAX_BATCH = 256;
+    private static final int MAX_PENDING = 100_000;
+    private static final long RETRY_BASE_MS = 500;
+    private static final long RETRY_MAX_MS = 30_000;
+
     private final String host;
     private final int port;
+    private final BlockCodec codec = BlockCodec.configured();
+    private final LinkedBlockingQueue<String> pending = new LinkedBlockingQueue<>(MAX_PENDING);
+
+    private Closeable socket;   // Socket 或 TlsChannel
+    private DataOutputStream out;
 
     public ReplicaNode(String host, int port) {
         this.host = host;
         this.port = port;
+        Thread sender = new Thread(this::drainLoop, "Replica-" + host + ":" + port);
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    // 将日志条目放入发送队列，不阻塞广播路径
+    public void sendLog(String room, long id, long timestamp, String sender, String text) {
+        if (!pending.offer(room + "|" + id + "|" + timestamp + "|" + sender + "|" + text)) {
+            System.err.println("Replication queue to " + host + ":" + port + " is full, dropping entry");
+        }
+    }
+
+    private void drainLoop() {
+        List<String> batch = new ArrayList<>(MAX_BATCH);
+        long backoff = 0;
+        while (true) {
+            if (batch.isEmpty()) {
+                try {
+                    String first = pending.poll(HEARTBEAT_MS, TimeUnit.MILLISECONDS);
+                    if (first != null) {
+                        batch.add(first);
+                        pending.drainTo(batch, MAX_BATCH - 1);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                // 空批次即心跳，只在已连接时发送
+                if (batch.isEmpty() && out == null) {
+                    continue;
+                }
+            }
+            try {
+                writeBatch(batch);
+                batch.clear();
+                backoff = 0;
+            } catch (IOException e) {
+                // 整批保留，重连后原样重发：部分写入的条目由从节点按 Leader id 跳过
+                closeQuietly();
+                backoff = backoff == 0 ? RETRY_BASE_MS : Math.min(RETRY_MAX_MS, backoff * 2);
+                System.err.println("Failed to replicate " + batch.size() + " entries to " + host + ":" + port
+                        + ", retrying in " + backoff + " ms: " + e.getMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void writeBatch(List<String> batch) throws IOException {
+        ChatEvents.ReplicaSend event = new ChatEvents.ReplicaSend();
+        event.begin();
+        boolean reconnect = out == null;
+        if (out == null) {
+            OutputStream raw;
+            if (TlsChannel.clientEnabled()) {
+                TlsChannel tls = TlsChannel.connect(host, port);
+                socket = tls;
+                raw = tls.getOutputStream();
+            } else {
+                Socket plain = new Socket(host, port);
+                socket = plain;
+                raw = plain.getOutputStream();
+            }
+            // 缓冲区大于一个批次，TLS 下每次 flush 只产生少量记录
+            out = new DataOutputStream(new BufferedOutputStream(raw, 64 * 1024));
+            if (codec != BlockCodec.NONE) {
+                CompressedBlocks.writeHeader(out, codec);
+            } else {
+                out.write((FORMAT_V2 + "\n").getBytes());
+            }
+        }
+        if (codec == BlockCodec.NONE) {
+            for (String line : batch) {
+                out.write((line + "\n").getBytes());
+            }
+            if (batch.isEmpty()) {
+                out.write('\n');   // 心跳：从节点忽略空行
+            }
+        } else {
+            CompressedBlocks.writeBlock(out, codec, FORMAT_V2, batch);
+        }
+        out.flush();
+        if (socket instanceof TlsChannel) {
+            // 只写不读的连接：顺带处理服务端发来的会话票据，以便重连时恢复会话
+            ((TlsChannel) socket).pollInbound();
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.target = host + ":" + port;
+            event.messages = batch.size();
+            event.pending = pending.size();
+            event.reconnect = reconnect;
+            event.commit();
+        }
     }
 
-    // 将日志条目发送到从节点
-    public void sendLog(String roomId, String messageJson) {
-        try (Socket socket = new Socket(host, port);
-             PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
-            // 格式：roomId|messageJson
-            out.println(roomId + "|" + messageJson);
-        } catch (IOException e) {
-            System.err.println("Failed to replicate to " + host + ":" + port + ": " + e.getMessage());
+    private void closeQuietly() {
+        try {
+            if (socket != null) socket.close();
+        } catch (IOException ignored) {
         }
+        socket = null;
+        out = null;
     }
-}
\ No newline at end of file
+}
@@ -2,27 +2,100 @@ package org.example;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.io.IOException;
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
 import java.io.InputStreamReader;
-import java.util.concurrent.CompletableFuture;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 // 3. 新增 ReplicationServer.java，在从节点启动时监听 Leader 推送
 public class ReplicationServer {
+    // Leader 空闲时定期发送心跳；这么久没有任何数据的连接视为半开连接并释放
+    private static final int READ_TIMEOUT_MS = (int) (3 * ReplicaNode.HEARTBEAT_MS);
+    // 每个房间最后应用的 Leader 消息 id，一行 "id|room"，同一房间以最后一行为准
+    private static final String APPLIED_FILE = "replication_applied.log";
+
     private final DataStore store;
     private final int port;
+    // 复制连接是长连接：每个连接独占一个线程，不能占用公共 ForkJoinPool
+    private final ExecutorService connections = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "ReplicationConn");
+        t.setDaemon(true);
+        return t;
+    });
+    // 每个房间已应用的 Leader 消息 id，重连后重发的条目据此跳过。
+    // 与本地消息 id 无关：从节点也接受客户端写入，本地 id 会超前于 Leader
+    private final ConcurrentHashMap<String, Long> appliedIds = new ConcurrentHashMap<>();
+    // 追加 APPLIED_FILE 互斥（不同房间的应用并发进行）
+    private final Object appliedLock = new Object();
 
     public ReplicationServer(DataStore store, int port) {
         this.store = store;
         this.port = port;
+        try {
+            loadApplied();
+        } catch (IOException e) {
+            System.err.println("ReplicationServer failed to load " + APPLIED_FILE + ": " + e.getMessage());
+        }
+    }
+
+    /** Read the last applied leader id per room, then rewrite the file with one line per room */
+    private void loadApplied() throws IOException {
+        File file = new File(APPLIED_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int sep = line.indexOf('|');
+                if (sep <= 0) {
+                    continue;
+                }
+                try {
+                    appliedIds.merge(line.substring(sep + 1), Long.parseLong(line.substring(0, sep)), Math::max);
+                } catch (NumberFormatException e) {
+                    // 崩溃时写了一半的行
+                }
+            }
+        }
+        File tmp = new File(APPLIED_FILE + ".tmp");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(tmp))) {
+            for (Map.Entry<String, Long> e : appliedIds.entrySet()) {
+                writer.write(e.getValue() + "|" + e.getKey());
+                writer.write("\n");
+            }
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void recordApplied(String room, long id) throws IOException {
+        synchronized (appliedLock) {
+            try (BufferedWriter writer = new BufferedWriter(new FileWriter(APPLIED_FILE, true))) {
+                writer.write(id + "|" + room);
+                writer.write("\n");
+            }
+        }
     }
 
     public void start() {
-        try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("ReplicationServer listening on port " + port);
+        try (ServerSocket serverSocket = TlsChannel.bind(port)) {
+            System.out.println("ReplicationServer listening on port " + port + (TlsChannel.serverEnabled() ? " (TLS)" : ""));
             while (true) {
                 Socket socket = serverSocket.accept();
-                // 异步处理接收
-                CompletableFuture.runAsync(() -> process(socket));
+                // 在 TLS 握手之前设置，握手与后续读取都受超时约束
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                connections.execute(() -> process(socket));
             }
         } catch (IOException e) {
             System.err.println("ReplicationServer error: " + e.getMessage());
@@ -30,21 +103,93 @@ public class ReplicationServer {
     }
 
     private void process(Socket socket) {
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-            String line;
-            while ((line = in.readLine()) != null) {
-                // 按分隔符拆分 roomId 与 messageJson
-                String[] parts = line.split("\\|", 2);
-                if (parts.length == 2) {
-                    String roomId = parts[0];
-                    String messageJson = parts[1];
-                    // 将日志应用到本地存储
-                    store.addMessage(roomId, messageJson);
-                    System.out.println("Replicated message to room " + roomId + ": " + messageJson);
+        try (Socket s = socket;
+             BufferedInputStream in = new BufferedInputStream(TlsChannel.serverEnabled()
+                     ? TlsChannel.accept(s).getInputStream()
+                     : s.getInputStream())) {
+            // 先窥探前 4 个字节：压缩批量帧 或 旧的纯文本行协议
+            in.mark(4);
+            byte[] head = in.readNBytes(4);
+            in.reset();
+            if (head.length == 4 && ByteBuffer.wrap(head).getInt() == CompressedBlocks.MAGIC) {
+                DataInputStream din = new DataInputStream(in);
+                BlockCodec codec = CompressedBlocks.readHeader(din);
+                CompressedBlocks.Block block;
+                while ((block = CompressedBlocks.readBlock(din, codec, null)) != null) {
+                    boolean v2 = ReplicaNode.FORMAT_V2.equals(block.key);
+                    for (String line : block.lines) {
+                        apply(line, v2);
+                    }
+                }
+            } else {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+                String line = reader.readLine();
+                boolean v2 = ReplicaNode.FORMAT_V2.equals(line);
+                if (v2) {
+                    line = reader.readLine();
+                }
+                for (; line != null; line = reader.readLine()) {
+                    apply(line, v2);
                 }
             }
         } catch (IOException e) {
             System.err.println("ReplicationServer process error: " + e.getMessage());
         }
     }
-}
\ No newline at end of file
+
+    private void apply(String line, boolean v2) {
+        // 格式 v2：roomId|id|timestamp|username|msg；旧格式：roomId|username|msg（使用本地时间）
+        String[] parts = line.split("\\|", v2 ? 5 : 3);
+        if (parts.length != (v2 ? 5 : 3)) {
+            return;
+        }
+        String roomId = parts[0];
+        String sender = parts[v2 ? 3 : 1];
+        String text = parts[v2 ? 4 : 2];
+        // 将日志应用到本地存储（同时写入本地日志，保证房间被驱逐后可重新加载）
+        try {
+            if (v2) {
+                if (!applyEntry(roomId, Long.parseLong(parts[1]), Long.parseLong(parts[2]), sender, text)) {
+                    return;
+                }
+            } else {
+                store.addMessage(roomId, sender, text, System.currentTimeMillis());
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("ReplicationServer malformed entry: " + line);
+            return;
+        } catch (IOException e) {
+            System.err.println("ReplicationServer persist error: " + e.getMessage());
+            return;
+        }
+        if (ServerStats.VERBOSE) {
+            System.out.println("Replicated message to room " + roomId + ": " + sender + "|" + text);
+        }
+    }
+
+    /**
+     * Store one entry with the leader's timestamp. Entries whose leader id
+     * was already applied (a batch resent after a reconnect) are skipped and
+     * return false. The last applied leader id per room is kept in
+     * {@link #APPLIED_FILE}, independent of local ids, since followers also
+     * take client writes. It is recorded after the message is stored, so a
+     * crash in between replays that one entry rather than losing it.
+     */
+    private boolean applyEntry(String room, long id, long timestamp, String sender, String text) throws IOException {
+        synchronized (store.roomLock(room)) {
+            long last = appliedIds.getOrDefault(room, 0L);
+            if (id <= last) {
+                System.err.println("ReplicationServer: room " + room + " leader id " + id
+                        + " already applied (last " + last + "), skipping");
+                return false;
+            }
+            if (id > last + 1) {
+                System.err.println("ReplicationServer: room " + room + " missing leader ids " + (last + 1) + ".." + (id - 1));
+            }
+            store.addMessage(room, sender, text, timestamp);
+            appliedIds.put(room, id);
+            recordApplied(room, id);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Room-affinity executor: every room is owned by exactly one worker thread
+ * out of a fixed pool, and all tasks submitted for that room run on it in
+ * submission order. Work for one room is therefore never concurrent, and
+ * each worker is fed through a lock-free {@link MpscQueue}.
+ */
+public class RoomExecutor {
+    private final Worker[] workers;
+
+    public RoomExecutor(int threads) {
+        workers = new Worker[Math.max(1, threads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker("RoomWorker-" + i);
+            workers[i].start();
+        }
+    }
+
+    public int size() {
+        return workers.length;
+    }
+
+    /** Run {@code task} on the worker that owns {@code room} */
+    public void execute(String room, Runnable task) {
+        Worker w = owner(room);
+        if (w.stopped) {
+            throw new IllegalStateException("RoomExecutor is shut down");
+        }
+        w.queue.offer(task);
+        // 只在工作线程可能已休眠时才 unpark，忙碌时入队不产生系统调用
+        if (w.sleeping) {
+            LockSupport.unpark(w);
+        }
+    }
+
+    /** Stop the workers after the tasks already queued have run */
+    public void shutdown() {
+        for (Worker w : workers) {
+            w.stopped = true;
+            LockSupport.unpark(w);
+        }
+    }
+
+    /** Wait for the workers to exit after {@link #shutdown()} */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (Worker w : workers) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) return false;
+            TimeUnit.NANOSECONDS.timedJoin(w, left);
+            if (w.isAlive()) return false;
+        }
+        return true;
+    }
+
+    private Worker owner(String room) {
+        int h = room.hashCode();
+        h ^= (h >>> 16);
+        return workers[(h & 0x7fffffff) % workers.length];
+    }
+
+    private static final class Worker extends Thread {
+        final MpscQueue<Runnable> queue = new MpscQueue<>();
+        volatile boolean sleeping;
+        volatile boolean stopped;
+
+        Worker(String name) {
+            super(name);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task = queue.poll();
+                if (task != null) {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        // 单个任务失败不能拖垮整个分片上的其他房间
+                        String err = "[" + getName() + "] Task failed: " + t;
+                        System.err.println(err);
+                        ServerStats.addLog(err);
+                    }
+                    continue;
+                }
+                if (stopped) {
+                    return;
+                }
+                // 先声明休眠再复查队列，与 execute() 中的 offer → 检查 sleeping 配对，不会丢失唤醒
+                sleeping = true;
+                if (queue.isEmpty() && !stopped) {
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+            }
+        }
+    }
+}
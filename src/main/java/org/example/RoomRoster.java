@@ -0,0 +1,68 @@
+package org.example;
+
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The users in one room and their avatar ids. A user keeps its id while
+ * any of its connections is in the room; the ids of users who left are
+ * handed out again, smallest first, so ids stay small (clients map the
+ * first few to avatar images). Joins and leaves are O(1) apart from the
+ * free-id lookup, which scans a bit set.
+ */
+public class RoomRoster {
+    private static final class Entry {
+        final int avatarId;
+        final Set<Object> connections = Collections.newSetFromMap(new IdentityHashMap<>());
+        Entry(int avatarId) {
+            this.avatarId = avatarId;
+        }
+    }
+
+    // 按加入顺序，发给新客户端的名单与旧实现一致
+    private final Map<String, Entry> users = new LinkedHashMap<>();
+    private final BitSet usedIds = new BitSet();
+
+    /** Add one connection of {@code user}; returns true if the user was not listed yet */
+    public synchronized boolean join(String user, Object connection) {
+        Entry e = users.get(user);
+        boolean added = e == null;
+        if (added) {
+            int id = usedIds.nextClearBit(0);
+            usedIds.set(id);
+            e = new Entry(id);
+            users.put(user, e);
+        }
+        e.connections.add(connection);
+        return added;
+    }
+
+    /** Remove one connection of {@code user}; returns true if the roster is now empty */
+    public synchronized boolean leave(String user, Object connection) {
+        Entry e = users.get(user);
+        if (e != null && e.connections.remove(connection) && e.connections.isEmpty()) {
+            users.remove(user);
+            usedIds.clear(e.avatarId);
+        }
+        return users.isEmpty();
+    }
+
+    /** Avatar id of a listed user, or -1 */
+    public synchronized int avatarId(String user) {
+        Entry e = users.get(user);
+        return e != null ? e.avatarId : -1;
+    }
+
+    /** Copy of user -> avatar id, in join order */
+    public synchronized Map<String, Integer> snapshot() {
+        Map<String, Integer> copy = new LinkedHashMap<>();
+        for (Map.Entry<String, Entry> e : users.entrySet()) {
+            copy.put(e.getKey(), e.getValue().avatarId);
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,41 @@
+package org.example;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs one room's deliveries one at a time, in the order they were
+ * enqueued. Enqueueing never blocks, so it can happen under the room lock
+ * that assigns message ids; the blocking writes run later in {@link #drain()}
+ * without that lock. Whichever caller finds the sequencer idle becomes the
+ * single writer and drains until the queue is empty; the others return at
+ * once, so a slow recipient only holds up its own room.
+ */
+public class RoomSequencer {
+    private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    /** Append a delivery; call {@link #drain()} afterwards, outside any shared lock */
+    public void enqueue(Runnable delivery) {
+        queue.offer(delivery);
+    }
+
+    /** Run queued deliveries unless another thread is already doing so */
+    public void drain() {
+        // 释放 draining 之后再检查一次：另一线程可能在我们退出前入队但没抢到
+        while (!queue.isEmpty() && draining.compareAndSet(false, true)) {
+            try {
+                Runnable delivery;
+                while ((delivery = queue.poll()) != null) {
+                    try {
+                        delivery.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("[RoomSequencer] Delivery failed: " + e.getMessage());
+                    }
+                }
+            } finally {
+                draining.set(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package org.example;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares the thread-per-client model (each caller mutates room state
+ * directly) with {@link RoomExecutor} room affinity. Every operation is what
+ * a SEND does in memory — append to the {@link DataStore} and fan out to the
+ * room's members — and one in 50 operations is a leave + join. Disk writes
+ * are left out so only the execution model is measured.
+ *
+ * Usage: RoomShardingBenchmark [producers] [rooms] [membersPerRoom] [opsPerProducer] [workers]
+ */
+public class RoomShardingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int rooms     = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int members   = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+        int ops       = args.length > 3 ? Integer.parseInt(args[3]) : 20_000;
+        int workers   = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+
+        System.out.printf("producers=%d rooms=%d members=%d ops/producer=%d workers=%d%n",
+                producers, rooms, members, ops, workers);
+        for (int round = 0; round < 3; round++) {
+            // 第一轮作为预热
+            report("direct ", run(producers, rooms, members, ops, null), producers * (long) ops, round);
+            RoomExecutor executor = new RoomExecutor(workers);
+            report("sharded", run(producers, rooms, members, ops, executor), producers * (long) ops, round);
+            executor.shutdown();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void report(String name, long nanos, long totalOps, int round) {
+        if (round == 0) return;
+        System.out.printf("%s  %,12.0f ops/s  (%d ms)%n", name, totalOps / (nanos / 1e9), nanos / 1_000_000);
+    }
+
+    /** Returns the wall time until every operation has completed */
+    private static long run(int producers, int rooms, int members, int ops, RoomExecutor executor)
+            throws InterruptedException, IOException {
+        DataStore store = new DataStore(false);
+        ConcurrentHashMap<String, CopyOnWriteArrayList<PrintWriter>> roomClients = new ConcurrentHashMap<>();
+        ConcurrentHashMap<String, RoomSequencer> sequencers = new ConcurrentHashMap<>();
+        LongAdder delivered = new LongAdder();
+        String[] names = new String[rooms];
+        for (int r = 0; r < rooms; r++) {
+            names[r] = "room" + r;
+            store.createRoom(names[r]);
+            CopyOnWriteArrayList<PrintWriter> list = new CopyOnWriteArrayList<>();
+            for (int m = 0; m < members; m++) {
+                list.add(sink(delivered));
+            }
+            roomClients.put(names[r], list);
+            sequencers.put(names[r], new RoomSequencer());
+        }
+
+        CountDownLatch done = new CountDownLatch(producers * ops);
+        Thread[] threads = new Thread[producers];
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            String user = "user" + p;
+            threads[p] = new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                for (int i = 0; i < ops; i++) {
+                    String room = names[rnd.nextInt(rooms)];
+                    boolean churn = i % 50 == 0;
+                    String text = "message " + i;
+                    Runnable task = () -> {
+                        CopyOnWriteArrayList<PrintWriter> list = roomClients.get(room);
+                        if (churn) {
+                            // 模拟一次离开 + 加入
+                            list.add(list.remove(0));
+                        }
+                        // 与 ClientHandler.handleSend 相同：房间锁内分配 id 并入队，锁外扇出
+                        RoomSequencer sequencer = sequencers.get(room);
+                        synchronized (store.roomLock(room)) {
+                            long id;
+                            try {
+                                id = store.addMessage(room, user, text);
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                            String line = "MSG|" + id + "|" + user + "|" + text;
+                            sequencer.enqueue(() -> {
+                                for (PrintWriter peer : list) {
+                                    peer.println(line);
+                                }
+                            });
+                        }
+                        sequencer.drain();
+                        done.countDown();
+                    };
+                    if (executor == null) {
+                        task.run();
+                    } else {
+                        executor.execute(room, task);
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        for (Thread t : threads) {
+            t.join();
+        }
+        return elapsed;
+    }
+
+    /** A client writer that only counts bytes, standing in for a socket */
+    private static PrintWriter sink(LongAdder delivered) {
+        return new PrintWriter(new OutputStream() {
+            @Override public void write(int b) { delivered.increment(); }
+            @Override public void write(byte[] b, int off, int len) { delivered.add(len); }
+        }, true);
+    }
+}
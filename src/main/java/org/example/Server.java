@@ -32,53 +32,148 @@ import java.util.concurrent.ConcurrentHashMap;
 public class Server {
     private static final int PORT = 9999;
     private static final int REPLICATION_PORT = 10001;  // 本节点作为从节点的监听端口
+    // 管理端点（HTTP，默认只监听本机）；端口设为 0 以下表示关闭
+    private static final int ADMIN_PORT = Integer.getInteger("dschat.admin.port", 10080);
+    private static final String ADMIN_HOST = System.getProperty("dschat.admin.host", "127.0.0.1");
+    private static final String ADMIN_TOKEN = System.getProperty("dschat.admin.token");
+    // 房间空闲超时与内存预算，可通过系统属性覆盖
+    private static final long ROOM_IDLE_TTL_MS = Long.getLong("dschat.room.idleTtlSec", 600) * 1000;
+    private static final long ROOM_MEMORY_BUDGET = Long.getLong("dschat.room.memoryBudgetMb", 256) * 1024 * 1024;
 
     private static ServerSocket serverSocket;
     private static ExecutorService executor;
     private static ScheduledExecutorService scheduler;
+    private static AdminServer adminServer;
+    // 广播微批量（默认关闭）：-Ddschat.batch.windowMs=2 开启
+    private static final long BATCH_WINDOW_MS = Long.getLong("dschat.batch.windowMs", 0);
+    private static final long BATCH_MAX_DELAY_MS = Long.getLong("dschat.batch.maxDelayMs", 5);
+    private static final int BATCH_MAX_MESSAGES = Integer.getInteger("dschat.batch.maxMessages", 64);
+
+    // 房间亲和执行（默认关闭）：-Ddschat.rooms.sharded=true 开启，工作线程数默认等于 CPU 核数
+    private static final int ROOM_WORKERS = Boolean.getBoolean("dschat.rooms.sharded")
+            ? Integer.getInteger("dschat.rooms.workers", Runtime.getRuntime().availableProcessors())
+            : 0;
+    private static final RoomExecutor roomExecutor = ROOM_WORKERS > 0 ? new RoomExecutor(ROOM_WORKERS) : null;
 
     // 存储房间到客户端输出流的映射
-    private static final ConcurrentHashMap<String, CopyOnWriteArrayList<PrintWriter>> roomClients = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, MembershipSet<PrintWriter>> roomClients = new ConcurrentHashMap<>();
+    private static final BroadcastBatcher batcher = BATCH_WINDOW_MS > 0
+            ? new BroadcastBatcher(roomClients::get, BATCH_WINDOW_MS, BATCH_MAX_DELAY_MS, BATCH_MAX_MESSAGES)
+            : null;
+    // 每个房间的投递顺序：房间锁内按 id 顺序入队，锁外写套接字
+    private static final ConcurrentHashMap<String, RoomSequencer> sequencers = new ConcurrentHashMap<>();
     // 主从复制的从节点列表
     private static final List<ReplicaNode> replicas = new CopyOnWriteArrayList<>();
 
-    public static final Map<String, CopyOnWriteArrayList<String>> usersInRoom = new ConcurrentHashMap<>();
+    // 房间用户名单与 avatarId；用户的最后一个连接离开时移除，空名单随之删除
+    private static final ConcurrentHashMap<String, RoomRoster> rosters = new ConcurrentHashMap<>();
 
 
     public static void registerClient(String room, PrintWriter out) {
-        roomClients
-            .computeIfAbsent(room, r -> new CopyOnWriteArrayList<>())
-            .add(out);
-        ServerStats.setActiveRooms(new ArrayList<>(roomClients.keySet()));
+        boolean[] created = new boolean[1];
+        // compute 与 unregisterClient 的 computeIfPresent 对同一房间互斥，空房间的删除不会吞掉并发加入
+        roomClients.compute(room, (r, members) -> {
+            if (members == null) {
+                members = new MembershipSet<>();
+                created[0] = true;
+            }
+            members.add(out);
+            return members;
+        });
+        if (created[0]) {
+            ServerStats.roomAdded(room);
+        }
     }
 
     public static void unregisterClient(String room, PrintWriter out) {
-        CopyOnWriteArrayList<PrintWriter> list = roomClients.get(room);
-        if (list != null) {
-            list.remove(out);
-            if (list.isEmpty()) {
-                roomClients.remove(room);
+        boolean[] emptied = new boolean[1];
+        roomClients.computeIfPresent(room, (r, members) -> {
+            members.remove(out);
+            emptied[0] = members.isEmpty();
+            return emptied[0] ? null : members;
+        });
+        if (emptied[0]) {
+            sequencers.remove(room);
+            if (batcher != null) {
+                batcher.forget(room);
             }
-            ServerStats.setActiveRooms(new ArrayList<>(roomClients.keySet()));
+            ServerStats.roomRemoved(room);
         }
     }
 
     /**
-     * 广播消息到房间内所有客户端，并复制到所有配置的从节点
+     * 在房间的所属线程上执行对该房间的修改（存储、成员、广播）。
+     * 未开启分片时直接在调用线程执行。
+     */
+    public static void onRoom(String room, Runnable task) {
+        if (roomExecutor == null) {
+            task.run();
+        } else {
+            roomExecutor.execute(room, task);
+        }
+    }
+
+    /**
+     * 把用户的一个连接加入房间名单并返回该名单；known[0] 表示用户此前已在名单中。
+     * 与 leaveRoster 对同一房间互斥，空名单的删除不会吞掉并发加入
+     */
+    public static RoomRoster joinRoster(String room, String user, Object connection, boolean[] known) {
+        return rosters.compute(room, (r, roster) -> {
+            if (roster == null) {
+                roster = new RoomRoster();
+            }
+            known[0] = !roster.join(user, connection);
+            return roster;
+        });
+    }
+
+    public static void leaveRoster(String room, String user, Object connection) {
+        rosters.computeIfPresent(room, (r, roster) -> roster.leave(user, connection) ? null : roster);
+    }
+
+    /** 房间的投递序列器，按需创建；房间最后一个客户端离开时丢弃 */
+    public static RoomSequencer sequencer(String room) {
+        return sequencers.computeIfAbsent(room, r -> new RoomSequencer());
+    }
+
+    /**
+     * 广播消息到房间内所有客户端
      */
     public static void broadcast(String room, String message, PrintWriter exclude) {
-        // 1) 本地广播
-        CopyOnWriteArrayList<PrintWriter> list = roomClients.get(room);
-        if (list != null) {
-            for (PrintWriter peer : list) {
+        if (batcher != null) {
+            batcher.submit(room, message, exclude);
+            return;
+        }
+        ChatEvents.Broadcast event = new ChatEvents.Broadcast();
+        event.begin();
+        int recipients = 0;
+        MembershipSet<PrintWriter> members = roomClients.get(room);
+        if (members != null) {
+            for (PrintWriter peer : members) {
                 if (peer != exclude) {
                     peer.println(message);
+                    recipients++;
                 }
             }
         }
-        // 2) 异步推送日志到所有从节点
+        event.end();
+        if (event.shouldCommit()) {
+            event.room = room;
+            event.recipients = recipients;
+            event.messages = 1;
+            event.size = message.length();
+            event.commit();
+        }
+    }
+
+    /**
+     * 将聊天消息连同本节点分配的 id 与时间戳异步复制到所有配置的从节点。
+     * 只复制真正的聊天消息，USERJOIN 等通知不再写入从节点历史。
+     */
+    public static void replicate(String room, long id, long timestamp, String sender, String text) {
+        // ReplicaNode 内部排队并批量压缩发送，这里不会阻塞
         for (ReplicaNode replica : replicas) {
-            CompletableFuture.runAsync(() -> replica.sendLog(room, message));
+            replica.sendLog(room, id, timestamp, sender, text);
         }
     }
 
@@ -93,10 +188,16 @@ public class Server {
                 scheduler.shutdownNow();
                 System.out.println("[Server] scheduler shut down");
             }
+            if (adminServer != null) {
+                adminServer.stop();
+            }
             if (executor != null) {
                 executor.shutdownNow();
                 System.out.println("[Server] executor shut down");
             }
+            if (roomExecutor != null) {
+                roomExecutor.shutdown();
+            }
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
                 System.out.println("[Server] serverSocket closed");
@@ -125,13 +226,18 @@ public class Server {
             repServer.start();
         }).start();
 
-        try {
-            MessageHelper.backupHistory();
-            String msg1 = "[Server] Chat history loaded.";
-            System.out.println(msg1);
-            ServerStats.addLog(msg1);
-        } catch (Exception e) {
-            System.err.println("[Server] History load error: " + e.getMessage());
+        // 历史不再在启动时整体加载：房间在首次 JOIN/HISTORY 时从日志懒加载
+        String msg1 = "[Server] Chat history will be hydrated per room on first use.";
+        System.out.println(msg1);
+        ServerStats.addLog(msg1);
+
+        if (ADMIN_PORT > 0) {
+            try {
+                adminServer = new AdminServer(store, ADMIN_HOST, ADMIN_PORT, ADMIN_TOKEN);
+                adminServer.start();
+            } catch (IOException e) {
+                System.err.println("[Server] Admin endpoint failed to start: " + e.getMessage());
+            }
         }
 
         executor = Executors.newCachedThreadPool();
@@ -149,10 +255,34 @@ public class Server {
                 System.err.println(err);
                 ServerStats.addLog(err);
             }
+            try {
+                if (MessageHelper.compactIfNeeded()) {
+                    ServerStats.addLog("[Scheduler] Sealed history log into a compressed segment.");
+                }
+            } catch (Exception e) {
+                String err = "[Scheduler] Compaction error: " + e.getMessage();
+                System.err.println(err);
+                ServerStats.addLog(err);
+            }
             ServerStats.setActiveRooms(new ArrayList<>(roomClients.keySet()));
         }, 1, 1, TimeUnit.MINUTES);
 
-        String startMsg = "ChatServer started on port " + PORT;
+        // 驱逐空闲房间 / 超出内存预算的最久未用房间（仍有在线客户端的房间不驱逐）
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                List<String> evicted = store.evictIdle(ROOM_IDLE_TTL_MS, ROOM_MEMORY_BUDGET, Server::hasRoom);
+                ClientHandler.sweepDedupeWindows();
+                if (!evicted.isEmpty()) {
+                    ServerStats.addLog("[Scheduler] Evicted idle rooms: " + evicted);
+                }
+            } catch (Exception e) {
+                ServerStats.addLog("[Scheduler] Eviction error: " + e.getMessage());
+            }
+        }, 30, 30, TimeUnit.SECONDS);
+
+        String startMsg = "ChatServer started on port " + PORT
+                + (TlsChannel.serverEnabled() ? " (TLS)" : "")
+                + (roomExecutor != null ? " (" + roomExecutor.size() + " room workers)" : "");
         System.out.println(startMsg);
         ServerStats.addLog(startMsg);
 
@@ -163,10 +293,13 @@ public class Server {
 
         // 接收客户端连接循环
         try {
-            serverSocket = new ServerSocket(PORT);
+            // 配置了 dschat.tls.keystore 时监听套接字由通道支撑，连接在 ClientHandler 中完成 TLS 握手
+            serverSocket = TlsChannel.bind(PORT);
             while (true) {
                 Socket clientSocket = serverSocket.accept();
-                System.out.println("New client connected: " + clientSocket.getRemoteSocketAddress());
+                if (ServerStats.VERBOSE) {
+                    System.out.println("New client connected: " + clientSocket.getRemoteSocketAddress());
+                }
                 ServerStats.clientConnected();
                 executor.execute(() -> {
                     ClientHandler handler = new ClientHandler(clientSocket, store);
@@ -175,9 +308,13 @@ public class Server {
                     } finally {
                         ServerStats.clientDisconnected();
                         String room = handler.getCurrentRoom();
+                        String user = handler.getUsername();
                         PrintWriter out = handler.getWriter();
                         if (room != null && out != null) {
-                            unregisterClient(room, out);
+                            onRoom(room, () -> {
+                                unregisterClient(room, out);
+                                leaveRoster(room, user, out);
+                            });
                         }
                     }
                 });
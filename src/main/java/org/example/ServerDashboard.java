@@ -1,24 +1,37 @@
 package org.example;
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
 import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
+import javafx.scene.chart.LineChart;
+import javafx.scene.chart.NumberAxis;
+import javafx.scene.chart.XYChart;
 import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 import javafx.stage.Stage;
 
-import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
+import java.util.Map;
 
 /**
  * ServerDashboard provides a JavaFX-based admin interface:
  * - Displays active rooms and client count
  * - Shows recent server logs
+ * - Charts per-room throughput and latency
  * - Allows manual backup trigger
+ * It subscribes to {@link ServerStats} events and applies only the deltas.
+ * Run with {@code --remote host:port} to monitor a server through its
+ * {@link AdminServer} endpoint instead of starting one in this JVM.
  */
 public class ServerDashboard extends Application {
 
@@ -26,8 +39,23 @@ public class ServerDashboard extends Application {
     private Label clientCountLabel;
     private TextArea logArea;
     private Button backupButton;
+    private Button compactButton;
+    private Button evictButton;
+    private LineChart<Number, Number> throughputChart;
+    private LineChart<Number, Number> latencyChart;
 
-    private ScheduledExecutorService refresher;
+    private static final int MAX_LOG_LINES = 500;
+    private static final int CHART_POINTS = 60;
+
+    private StatsFeed feed;
+    private RemoteStatsFeed remote;   // null 表示与服务器同一 JVM
+    private AnimationTimer pump;
+    private final Deque<Integer> logLineLengths = new ArrayDeque<>();
+    private final Map<String, long[]> lastCounters = new HashMap<>();
+    private final Map<String, XYChart.Series<Number, Number>> throughputSeries = new HashMap<>();
+    private final Map<String, XYChart.Series<Number, Number>> latencySeries = new HashMap<>();
+    private long lastCountersAt;
+    private final long startedAt = System.currentTimeMillis();
 
     @Override
     public void start(Stage primaryStage) {
@@ -36,27 +64,53 @@ public class ServerDashboard extends Application {
         logArea = new TextArea();
         logArea.setEditable(false);
 
+        List<String> args = getParameters().getRaw();
+        String remoteAddr = argValue(args, "--remote");
+        if (remoteAddr != null) {
+            String token = argValue(args, "--token");
+            remote = new RemoteStatsFeed(remoteAddr, token != null ? token : System.getProperty("dschat.admin.token"));
+        }
+
         backupButton = new Button("Backup Now");
         backupButton.setOnAction(e -> triggerBackup());
+        compactButton = new Button("Compact Log");
+        compactButton.setOnAction(e -> runCommand("/compact"));
+        evictButton = new Button("Evict Selected Room");
+        evictButton.setOnAction(e -> {
+            String room = roomsList.getSelectionModel().getSelectedItem();
+            if (room != null) {
+                runCommand("/evict?room=" + URLEncoder.encode(room, StandardCharsets.UTF_8));
+            }
+        });
+        // 本地模式下没有 HTTP 端点，压缩/驱逐只在远程模式提供
+        compactButton.setDisable(remote == null);
+        evictButton.setDisable(remote == null);
 
-        VBox leftPane = new VBox(10, new Label("Active Rooms"), roomsList, clientCountLabel, backupButton);
+        VBox leftPane = new VBox(10, new Label("Active Rooms"), roomsList, clientCountLabel,
+                backupButton, compactButton, evictButton);
         leftPane.setPadding(new Insets(10));
 
+        throughputChart = newChart("Messages / s");
+        latencyChart = newChart("Avg latency (ms)");
+        VBox center = new VBox(5, new HBox(5, throughputChart, latencyChart), logArea);
+        VBox.setVgrow(logArea, Priority.ALWAYS);
+        center.setPadding(new Insets(10));
+
         BorderPane root = new BorderPane();
         root.setLeft(leftPane);
-        root.setCenter(new ScrollPane(logArea));
+        root.setCenter(center);
 
-        primaryStage.setTitle("Server Dashboard");
+        primaryStage.setTitle(remote == null ? "Server Dashboard" : "Server Dashboard — " + remoteAddr);
         primaryStage.setScene(new Scene(root, 800, 600));
 
         // 在 show() 之前，注册关闭钩子
         primaryStage.setOnCloseRequest(event -> {
-            // 停掉刷新线程
-            if (refresher != null && !refresher.isShutdown()) {
-                refresher.shutdownNow();
+            // 停掉事件订阅
+            stopFeed();
+            // 本地模式下关闭同一 JVM 中的服务器
+            if (remote == null) {
+                Server.shutdownServer();
             }
-            // 关闭服务器
-            Server.shutdownServer();
 
             // 退出 JavaFX 平台
             Platform.exit();
@@ -69,51 +123,169 @@ public class ServerDashboard extends Application {
         startRefresher();
     }
 
+    private static LineChart<Number, Number> newChart(String title) {
+        NumberAxis x = new NumberAxis();
+        x.setForceZeroInRange(false);
+        x.setLabel("s");
+        LineChart<Number, Number> chart = new LineChart<>(x, new NumberAxis());
+        chart.setTitle(title);
+        chart.setAnimated(false);
+        chart.setCreateSymbols(false);
+        chart.setPrefHeight(220);
+        return chart;
+    }
+
     /**
-     * Periodically refresh stats and logs
+     * Subscribe to ServerStats and apply the queued deltas once per FX pulse
      */
     private void startRefresher() {
-        refresher = Executors.newSingleThreadScheduledExecutor();
-        refresher.scheduleAtFixedRate(() -> {
-            int clientCount = ServerStats.getActiveClientCount();
-            List<String> rooms = ServerStats.getActiveRooms();
-            List<String> logs = ServerStats.getRecentLogs();
-
-            Platform.runLater(() -> {
-                clientCountLabel.setText("Clients: " + clientCount);
-                roomsList.getItems().setAll(rooms);
+        feed = remote != null ? remote : ServerStats.subscribe();
+        pump = new AnimationTimer() {
+            @Override public void handle(long now) {
+                ServerStats.Event e;
+                while ((e = feed.poll()) != null) {
+                    apply(e);
+                }
+            }
+        };
+        pump.start();
+    }
+
+    private void stopFeed() {
+        if (pump != null) pump.stop();
+        if (feed != null) feed.close();
+    }
+
+    private void apply(ServerStats.Event e) {
+        switch (e.kind) {
+            case RESET:
+                // 重新订阅：随后的快照是完整的房间列表和最近日志，断开期间的增量不会补发
+                roomsList.getItems().clear();
                 logArea.clear();
-                logs.forEach(line -> logArea.appendText(line + "\n"));
-            });
-        }, 0, 1, TimeUnit.SECONDS);
+                logLineLengths.clear();
+                lastCounters.clear();
+                lastCountersAt = 0;
+                throughputSeries.clear();
+                latencySeries.clear();
+                throughputChart.getData().clear();
+                latencyChart.getData().clear();
+                break;
+            case LOG:
+                appendLog(e.text);
+                break;
+            case ROOM_ADDED:
+                if (!roomsList.getItems().contains(e.text)) roomsList.getItems().add(e.text);
+                break;
+            case ROOM_REMOVED:
+                roomsList.getItems().remove(e.text);
+                lastCounters.remove(e.text);
+                XYChart.Series<Number, Number> t = throughputSeries.remove(e.text);
+                if (t != null) throughputChart.getData().remove(t);
+                XYChart.Series<Number, Number> l = latencySeries.remove(e.text);
+                if (l != null) latencyChart.getData().remove(l);
+                break;
+            case COUNTERS:
+                applyCounters(e);
+                break;
+        }
+    }
+
+    /** 只追加新行，超过上限时从头部删除最旧的行 */
+    private void appendLog(String line) {
+        logArea.appendText(line + "\n");
+        logLineLengths.addLast(line.length() + 1);
+        if (logLineLengths.size() > MAX_LOG_LINES) {
+            logArea.deleteText(0, logLineLengths.pollFirst());
+        }
+    }
+
+    /** 由累计计数器的差值计算每个房间的吞吐和平均延迟 */
+    private void applyCounters(ServerStats.Event e) {
+        clientCountLabel.setText("Clients: " + e.clients);
+        double seconds = lastCountersAt == 0 ? 1 : Math.max(0.001, (e.timestamp - lastCountersAt) / 1000.0);
+        double x = (e.timestamp - startedAt) / 1000.0;
+        for (Map.Entry<String, long[]> entry : e.rooms.entrySet()) {
+            String room = entry.getKey();
+            long[] now = entry.getValue();
+            long[] prev = lastCounters.getOrDefault(room, new long[2]);
+            long messages = now[0] - prev[0];
+            double rate = messages / seconds;
+            double latencyMs = messages > 0 ? (now[1] - prev[1]) / (double) messages / 1_000_000.0 : 0;
+            addPoint(throughputChart, throughputSeries, room, x, rate);
+            addPoint(latencyChart, latencySeries, room, x, latencyMs);
+            lastCounters.put(room, now);
+        }
+        lastCountersAt = e.timestamp;
+    }
+
+    private static void addPoint(LineChart<Number, Number> chart, Map<String, XYChart.Series<Number, Number>> seriesByRoom,
+                                 String room, double x, double y) {
+        XYChart.Series<Number, Number> series = seriesByRoom.computeIfAbsent(room, r -> {
+            XYChart.Series<Number, Number> created = new XYChart.Series<>();
+            created.setName(r);
+            chart.getData().add(created);
+            return created;
+        });
+        series.getData().add(new XYChart.Data<>(x, y));
+        if (series.getData().size() > CHART_POINTS) {
+            series.getData().remove(0);
+        }
     }
 
     /**
      * Send manual backup command to server, handling IOException
      */
     private void triggerBackup() {
+        if (remote != null) {
+            runCommand("/backup");
+            return;
+        }
         new Thread(() -> {
             try {
                 MessageHelper.backupHistory();
-                Platform.runLater(() -> logArea.appendText("[Dashboard] Manual backup triggered.\n"));
+                Platform.runLater(() -> appendLog("[Dashboard] Manual backup triggered."));
+            } catch (Exception e) {
+                Platform.runLater(() -> appendLog("[Dashboard] Backup failed: " + e.getMessage()));
+            }
+        }).start();
+    }
+
+    /** POST an admin command to the remote server off the FX thread */
+    private void runCommand(String pathAndQuery) {
+        new Thread(() -> {
+            String result;
+            try {
+                result = remote.command(pathAndQuery);
             } catch (Exception e) {
-                Platform.runLater(() -> logArea.appendText("[Dashboard] Backup failed: " + e.getMessage() + "\n"));
+                result = "failed: " + e.getMessage();
             }
+            String line = "[Dashboard] " + pathAndQuery + " -> " + result;
+            Platform.runLater(() -> appendLog(line));
         }).start();
     }
 
+    /** host:port following --remote, or null for the in-process mode */
+    private static String argValue(List<String> args, String name) {
+        int i = args.indexOf(name);
+        return i >= 0 && i + 1 < args.size() ? args.get(i + 1) : null;
+    }
+
     @Override
     public void stop() throws Exception {
         super.stop();
-        // 停掉刷新任务
-        if (refresher != null && !refresher.isShutdown()) {
-            refresher.shutdownNow();
-        }
+        // 停掉事件订阅
+        stopFeed();
         // 再次确保 JVM 退出
         System.exit(0);
     }
 
     public static void main(String[] args) {
+        // 远程模式：只连接服务器的管理端点，不在本进程启动服务器
+        if (argValue(Arrays.asList(args), "--remote") != null) {
+            launch(args);
+            return;
+        }
+
         // —— 1. 在同一 JVM 中启动聊天服务器 ——
         Thread serverThread = new Thread(() -> {
             try {
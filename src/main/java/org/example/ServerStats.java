@@ -1,19 +1,215 @@
 package org.example;
 
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * ServerStats maintains runtime statistics and logs for the chat server.
+ * Changes are also pushed as incremental {@link Event}s to subscribers
+ * (e.g. the dashboard) through lock-free queues, so observers never take
+ * locks on the chat hot path.
  */
 public class ServerStats {
+    /** Per-message and per-connection log lines (stdout and dashboard); -Ddschat.verbose=false turns them off */
+    public static final boolean VERBOSE = Boolean.parseBoolean(System.getProperty("dschat.verbose", "true"));
+
     private static final AtomicInteger activeClients = new AtomicInteger(0);
-    private static final List<String> activeRooms = Collections.synchronizedList(new ArrayList<>());
-    private static final List<String> recentLogs = Collections.synchronizedList(new ArrayList<>());
+    private static final Set<String> activeRooms = ConcurrentHashMap.newKeySet();
+    private static final ConcurrentLinkedDeque<String> recentLogs = new ConcurrentLinkedDeque<>();
+    private static final AtomicInteger recentLogCount = new AtomicInteger(0);
     private static final int MAX_LOGS = 100;
 
+    private static final Map<String, RoomCounters> roomCounters = new ConcurrentHashMap<>();
+    // 广播微批量指标
+    private static final LongAdder batches = new LongAdder();
+    private static final LongAdder batchedMessages = new LongAdder();
+    private static final LongAdder batchDelayNanos = new LongAdder();
+    private static final AtomicLong maxBatchDelayNanos = new AtomicLong();
+    // SEND 幂等去重指标
+    private static final LongAdder dedupeHits = new LongAdder();
+    private static final LongAdder dedupeMisses = new LongAdder();
+    private static final List<Subscription> subscribers = new CopyOnWriteArrayList<>();
+    private static ScheduledExecutorService snapshotter;
+
+    /** One incremental change published to subscribers */
+    public static class Event {
+        public enum Kind { RESET, LOG, ROOM_ADDED, ROOM_REMOVED, COUNTERS }
+
+        public final Kind kind;
+        public final long timestamp;
+        /** Log line or room name */
+        public final String text;
+        /** COUNTERS only: connected clients */
+        public final int clients;
+        /** COUNTERS only: room -> {messages total, latency nanos total} */
+        public final Map<String, long[]> rooms;
+
+        Event(Kind kind, String text, int clients, Map<String, long[]> rooms) {
+            this(kind, System.currentTimeMillis(), text, clients, rooms);
+        }
+
+        private Event(Kind kind, long timestamp, String text, int clients, Map<String, long[]> rooms) {
+            this.kind = kind;
+            this.timestamp = timestamp;
+            this.text = text;
+            this.clients = clients;
+            this.rooms = rooms;
+        }
+
+        /** A local log event, e.g. for messages produced by the dashboard itself */
+        public static Event log(String text) {
+            return new Event(Kind.LOG, text, 0, null);
+        }
+
+        /**
+         * Wire format used by the admin /events stream:
+         * RESET|ts|, LOG|ts|text, ROOM+|ts|room, ROOM-|ts|room,
+         * COUNTERS|ts|clients|room=messages:latencyNanos,... (room names URL-encoded)
+         */
+        public String toLine() {
+            switch (kind) {
+                case RESET:        return "RESET|" + timestamp + "|";
+                case LOG:          return "LOG|" + timestamp + "|" + text.replace('\n', ' ');
+                case ROOM_ADDED:   return "ROOM+|" + timestamp + "|" + text;
+                case ROOM_REMOVED: return "ROOM-|" + timestamp + "|" + text;
+                default:
+                    StringBuilder sb = new StringBuilder("COUNTERS|").append(timestamp).append('|').append(clients).append('|');
+                    boolean first = true;
+                    for (Map.Entry<String, long[]> e : rooms.entrySet()) {
+                        if (!first) sb.append(',');
+                        sb.append(URLEncoder.encode(e.getKey(), StandardCharsets.UTF_8))
+                          .append('=').append(e.getValue()[0]).append(':').append(e.getValue()[1]);
+                        first = false;
+                    }
+                    return sb.toString();
+            }
+        }
+
+        /** Parse a line produced by {@link #toLine()}, or return null if malformed */
+        public static Event fromLine(String line) {
+            String[] p = line.split("\\|", 4);
+            if (p.length < 3) return null;
+            try {
+                long ts = Long.parseLong(p[1]);
+                switch (p[0]) {
+                    case "RESET": return new Event(Kind.RESET, ts, null, 0, null);
+                    case "LOG":   return new Event(Kind.LOG, ts, line.substring(p[0].length() + p[1].length() + 2), 0, null);
+                    case "ROOM+": return new Event(Kind.ROOM_ADDED, ts, p[2], 0, null);
+                    case "ROOM-": return new Event(Kind.ROOM_REMOVED, ts, p[2], 0, null);
+                    case "COUNTERS":
+                        Map<String, long[]> rooms = new HashMap<>();
+                        if (p.length == 4 && !p[3].isEmpty()) {
+                            for (String item : p[3].split(",")) {
+                                String[] kv = item.split("=", 2);
+                                String[] nums = kv[1].split(":", 2);
+                                rooms.put(URLDecoder.decode(kv[0], StandardCharsets.UTF_8),
+                                        new long[] {Long.parseLong(nums[0]), Long.parseLong(nums[1])});
+                            }
+                        }
+                        return new Event(Kind.COUNTERS, ts, null, Integer.parseInt(p[2]), rooms);
+                    default:
+                        return null;
+                }
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+    }
+
+    /** A subscriber's event queue; drain it with {@link #poll()} */
+    public static class Subscription implements StatsFeed {
+        private static final int MAX_PENDING = 10_000;
+        private final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+
+        void offer(Event e) {
+            // 订阅者卡住时只丢弃日志和计数快照（下一秒的快照会补上）；
+            // 房间增减是增量且不会重发，必须保留，否则房间列表永久失真
+            boolean droppable = e.kind == Event.Kind.LOG || e.kind == Event.Kind.COUNTERS;
+            if (pending.incrementAndGet() > MAX_PENDING && droppable) {
+                pending.decrementAndGet();
+                return;
+            }
+            queue.offer(e);
+        }
+
+        @Override
+        public Event poll() {
+            Event e = queue.poll();
+            if (e != null) pending.decrementAndGet();
+            return e;
+        }
+
+        @Override
+        public void close() {
+            subscribers.remove(this);
+        }
+    }
+
+    private static class RoomCounters {
+        final LongAdder messages = new LongAdder();
+        final LongAdder latencyNanos = new LongAdder();
+    }
+
+    /**
+     * Subscribe to stats events. The queue is pre-filled with a RESET marker,
+     * the current rooms and recent logs, then receives deltas plus a counter
+     * snapshot every second. A consumer that resubscribes (e.g. after the
+     * admin stream dropped) discards its state on RESET, since deltas missed
+     * in between are not replayed.
+     */
+    public static Subscription subscribe() {
+        Subscription sub = new Subscription();
+        sub.offer(new Event(Event.Kind.RESET, null, 0, null));
+        for (String room : activeRooms) {
+            sub.offer(new Event(Event.Kind.ROOM_ADDED, room, 0, null));
+        }
+        for (String log : recentLogs) {
+            sub.offer(new Event(Event.Kind.LOG, log, 0, null));
+        }
+        subscribers.add(sub);
+        startSnapshotter();
+        return sub;
+    }
+
+    private static synchronized void startSnapshotter() {
+        if (snapshotter != null) return;
+        snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "StatsSnapshotter");
+            t.setDaemon(true);
+            return t;
+        });
+        snapshotter.scheduleAtFixedRate(() -> {
+            if (subscribers.isEmpty()) return;
+            Map<String, long[]> snapshot = new HashMap<>();
+            roomCounters.forEach((room, c) -> snapshot.put(room, new long[] {c.messages.sum(), c.latencyNanos.sum()}));
+            publish(new Event(Event.Kind.COUNTERS, null, activeClients.get(), Collections.unmodifiableMap(snapshot)));
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    private static void publish(Event e) {
+        for (Subscription sub : subscribers) {
+            sub.offer(e);
+        }
+    }
+
     public static void clientConnected() {
         int count = activeClients.incrementAndGet();
         addLog("Client connected. Total clients: " + count);
@@ -28,31 +224,88 @@ public class ServerStats {
         return activeClients.get();
     }
 
+    /** Record one handled chat message and its server-side latency */
+    public static void recordMessage(String room, long latencyNanos) {
+        RoomCounters c = roomCounters.computeIfAbsent(room, r -> new RoomCounters());
+        c.messages.increment();
+        c.latencyNanos.add(latencyNanos);
+    }
+
+    /** Record one flushed broadcast batch and the delay it added to its messages */
+    public static void recordBatch(int size, long addedNanosTotal, long addedNanosMax) {
+        batches.increment();
+        batchedMessages.add(size);
+        batchDelayNanos.add(addedNanosTotal);
+        maxBatchDelayNanos.accumulateAndGet(addedNanosMax, Math::max);
+    }
+
+    /** Batching summary: batches, messages, avg batch size, avg/max added latency */
+    public static String getBatchStats() {
+        long b = batches.sum();
+        long m = batchedMessages.sum();
+        return String.format("batches=%d messages=%d avgSize=%.2f avgDelayMs=%.3f maxDelayMs=%.3f",
+                b, m, b == 0 ? 0.0 : (double) m / b,
+                m == 0 ? 0.0 : batchDelayNanos.sum() / (double) m / 1_000_000.0,
+                maxBatchDelayNanos.get() / 1_000_000.0);
+    }
+
+    /** Record one SEND that carried a client message id */
+    public static void recordDedupe(boolean duplicate) {
+        (duplicate ? dedupeHits : dedupeMisses).increment();
+    }
+
+    /** Dedupe summary: duplicates suppressed, unique sends checked, hit rate */
+    public static String getDedupeStats() {
+        long hits = dedupeHits.sum();
+        long total = hits + dedupeMisses.sum();
+        return String.format("duplicates=%d checked=%d hitRate=%.4f", hits, total, total == 0 ? 0.0 : (double) hits / total);
+    }
+
+    /** A room gained its first client */
+    public static void roomAdded(String room) {
+        if (activeRooms.add(room)) {
+            publish(new Event(Event.Kind.ROOM_ADDED, room, 0, null));
+        }
+    }
+
+    /** A room lost its last client */
+    public static void roomRemoved(String room) {
+        if (activeRooms.remove(room)) {
+            roomCounters.remove(room);
+            publish(new Event(Event.Kind.ROOM_REMOVED, room, 0, null));
+        }
+    }
+
+    /** Replace the active room set, publishing only the rooms that changed */
     public static void setActiveRooms(List<String> rooms) {
-        synchronized (activeRooms) {
-            activeRooms.clear();
-            activeRooms.addAll(rooms);
+        Set<String> next = ConcurrentHashMap.newKeySet();
+        next.addAll(rooms);
+        for (String room : next) {
+            if (activeRooms.add(room)) {
+                publish(new Event(Event.Kind.ROOM_ADDED, room, 0, null));
+            }
+        }
+        for (String room : activeRooms) {
+            if (!next.contains(room) && activeRooms.remove(room)) {
+                roomCounters.remove(room);
+                publish(new Event(Event.Kind.ROOM_REMOVED, room, 0, null));
+            }
         }
     }
 
     public static List<String> getActiveRooms() {
-        synchronized (activeRooms) {
-            return new ArrayList<>(activeRooms);
-        }
+        return new ArrayList<>(activeRooms);
     }
 
     public static void addLog(String log) {
-        synchronized (recentLogs) {
-            recentLogs.add(log);
-            if (recentLogs.size() > MAX_LOGS) {
-                recentLogs.remove(0);
-            }
+        recentLogs.addLast(log);
+        if (recentLogCount.incrementAndGet() > MAX_LOGS && recentLogs.pollFirst() != null) {
+            recentLogCount.decrementAndGet();
         }
+        publish(new Event(Event.Kind.LOG, log, 0, null));
     }
 
     public static List<String> getRecentLogs() {
-        synchronized (recentLogs) {
-            return new ArrayList<>(recentLogs);
-        }
+        return new ArrayList<>(recentLogs);
     }
 }
@@ -0,0 +1,13 @@
+package org.example;
+
+/**
+ * A source of {@link ServerStats.Event}s for the dashboard: either an
+ * in-process subscription or a remote admin endpoint.
+ */
+public interface StatsFeed {
+
+    /** Next pending event, or null if none is queued */
+    ServerStats.Event poll();
+
+    void close();
+}
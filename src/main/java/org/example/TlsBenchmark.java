@@ -0,0 +1,191 @@
+package org.example;
+
+import javax.net.ssl.SSLContext;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+/**
+ * Local TLS measurements against a self-signed keystore (see README for the
+ * keytool command): full vs resumed handshake rate, and one-way throughput
+ * over plaintext vs {@link TlsChannel}, both with one flush per chat line
+ * and with 16 KiB writes as used by the replica push.
+ *
+ * Usage: TlsBenchmark &lt;keystore&gt; &lt;password&gt; [handshakes] [megabytes]
+ */
+public class TlsBenchmark {
+    private static final int END_MARKER = ('E' << 24) | ('N' << 16) | ('D' << 8) | '\n';
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: TlsBenchmark <keystore> <password> [handshakes] [megabytes]");
+            return;
+        }
+        String keystore = args[0];
+        String password = args[1];
+        int handshakes = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+        int megabytes = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+
+        SSLContext server = TlsChannel.newContext(keystore, password, null, null);
+        try (ServerSocketChannel tlsListener = listen(); ServerSocketChannel plainListener = listen()) {
+            int tlsPort = tlsListener.socket().getLocalPort();
+            int plainPort = plainListener.socket().getLocalPort();
+            startSink(tlsListener, server);
+            startSink(plainListener, null);
+
+            // 预热
+            fullHandshakes(keystore, password, tlsPort, handshakes / 5 + 1);
+            resumedHandshakes(TlsChannel.newContext(null, null, keystore, password), tlsPort, handshakes / 5 + 1);
+
+            System.out.printf("full handshakes     %,8.0f /s%n", fullHandshakes(keystore, password, tlsPort, handshakes));
+            System.out.printf("resumed handshakes  %,8.0f /s%n",
+                    resumedHandshakes(TlsChannel.newContext(null, null, keystore, password), tlsPort, handshakes));
+
+            SSLContext client = TlsChannel.newContext(null, null, keystore, password);
+            for (int chunk : new int[] {100, 16 * 1024}) {
+                throughput(null, plainPort, megabytes, chunk);   // 预热
+                throughput(client, tlsPort, megabytes, chunk);
+                double plain = throughput(null, plainPort, megabytes, chunk);
+                double tls = throughput(client, tlsPort, megabytes, chunk);
+                System.out.printf("%6d B writes      plain %,8.1f MB/s   tls %,8.1f MB/s   overhead %5.1f%%%n",
+                        chunk, plain, tls, (plain / tls - 1) * 100);
+            }
+        }
+        System.exit(0);
+    }
+
+    private static ServerSocketChannel listen() throws IOException {
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.bind(new InetSocketAddress("localhost", 0));
+        return ssc;
+    }
+
+    /** Accepts connections, greets each with one line, then reads to EOF and reports the byte count */
+    private static void startSink(ServerSocketChannel listener, SSLContext context) {
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                Socket socket;
+                try {
+                    socket = listener.accept().socket();
+                } catch (IOException e) {
+                    return;
+                }
+                Thread t = new Thread(() -> serve(socket, context));
+                t.setDaemon(true);
+                t.start();
+            }
+        }, "BenchSink");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private static void serve(Socket socket, SSLContext context) {
+        try {
+            InputStream in;
+            OutputStream out;
+            if (context != null) {
+                TlsChannel tls = TlsChannel.accept(socket, context);
+                in = tls.getInputStream();
+                out = tls.getOutputStream();
+            } else {
+                in = socket.getInputStream();
+                out = socket.getOutputStream();
+            }
+            PrintWriter w = new PrintWriter(out, true);
+            w.println("Welcome!");
+            byte[] buf = new byte[64 * 1024];
+            long total = 0;
+            int tail = 0;   // 最近 4 个字节，遇到 "END\n" 结束
+            int n;
+            read:
+            while ((n = in.read(buf)) > 0) {
+                total += n;
+                for (int i = 0; i < n; i++) {
+                    tail = (tail << 8) | (buf[i] & 0xff);
+                    if (tail == END_MARKER) break read;
+                }
+            }
+            w.println(total);
+        } catch (IOException ignored) {
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /** A fresh client context per connection, so nothing can be resumed */
+    private static double fullHandshakes(String keystore, String password, int port, int n) throws IOException {
+        long elapsed = 0;
+        for (int i = 0; i < n; i++) {
+            SSLContext fresh = TlsChannel.newContext(null, null, keystore, password);
+            long start = System.nanoTime();
+            handshakeOnce(fresh, port);
+            elapsed += System.nanoTime() - start;
+        }
+        return n / (elapsed / 1e9);
+    }
+
+    /** One shared client context: after the first connection every handshake resumes */
+    private static double resumedHandshakes(SSLContext shared, int port, int n) throws IOException {
+        handshakeOnce(shared, port);
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            handshakeOnce(shared, port);
+        }
+        return n / ((System.nanoTime() - start) / 1e9);
+    }
+
+    private static void handshakeOnce(SSLContext context, int port) throws IOException {
+        try (TlsChannel tls = TlsChannel.connect(context, "localhost", port)) {
+            // 读欢迎行：同时处理服务端的会话票据
+            new BufferedReader(new InputStreamReader(tls.getInputStream())).readLine();
+        }
+    }
+
+    /** MB/s for sending {@code megabytes} in writes of {@code chunk} bytes, each flushed */
+    private static double throughput(SSLContext context, int port, int megabytes, int chunk) throws IOException {
+        TlsChannel tls = null;
+        SocketChannel plain = null;
+        InputStream in;
+        OutputStream out;
+        if (context != null) {
+            tls = TlsChannel.connect(context, "localhost", port);
+            in = tls.getInputStream();
+            out = tls.getOutputStream();
+        } else {
+            plain = SocketChannel.open(new InetSocketAddress("localhost", port));
+            in = plain.socket().getInputStream();
+            out = plain.socket().getOutputStream();
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in));
+            reader.readLine();
+            byte[] data = new byte[chunk];
+            Arrays.fill(data, (byte) 'x');
+            data[chunk - 1] = '\n';
+            long total = (long) megabytes * 1024 * 1024;
+            long start = System.nanoTime();
+            for (long sent = 0; sent < total; sent += chunk) {
+                out.write(data, 0, chunk);
+                out.flush();
+            }
+            out.write("END\n".getBytes());
+            out.flush();
+            reader.readLine();   // 等待对端读完
+            return total / 1e6 / ((System.nanoTime() - start) / 1e9);
+        } finally {
+            if (tls != null) tls.close();
+            if (plain != null) plain.close();
+        }
+    }
+}
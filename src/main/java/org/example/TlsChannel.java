@@ -0,0 +1,456 @@
+package org.example;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+/**
+ * TLS over a {@link SocketChannel}, driven by an {@link SSLEngine}. The
+ * engine only transforms buffers, so record handling is independent of how
+ * the channel is read; the chat server's I/O is blocking today, so the
+ * channel is used in blocking mode and exposed as plain streams.
+ *
+ * TLS is enabled on the server ports with -Ddschat.tls.keystore=&lt;file&gt;
+ * (PKCS12 or JKS) and -Ddschat.tls.password. Outgoing connections (replica
+ * push, chat client) use TLS when a keystore or -Ddschat.tls.truststore is
+ * set, and verify the server's host name against its certificate. One
+ * SSLContext per side is shared by all connections, so reconnects resume
+ * cached sessions (TLS 1.3 tickets) instead of running full handshakes.
+ */
+public class TlsChannel implements Closeable {
+    private static final String KEYSTORE = System.getProperty("dschat.tls.keystore");
+    private static final String PASSWORD = System.getProperty("dschat.tls.password", "");
+    private static final String TRUSTSTORE = System.getProperty("dschat.tls.truststore", KEYSTORE);
+    private static final String TRUSTSTORE_PASSWORD = System.getProperty("dschat.tls.truststorePassword", PASSWORD);
+    private static final int SESSION_CACHE_SIZE = Integer.getInteger("dschat.tls.sessionCacheSize", 20_000);
+    private static final int SESSION_TIMEOUT_SEC = Integer.getInteger("dschat.tls.sessionTimeoutSec", 24 * 3600);
+
+    private static SSLContext serverContext;
+    private static SSLContext clientContext;
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+    private final InputStream timedIn;   // 设置了 SO_TIMEOUT 时的读取入口，否则为 null
+    private final Object readLock = new Object();
+    private final Object writeLock = new Object();
+    private ByteBuffer netIn;    // 收到的密文，写模式
+    private ByteBuffer appIn;    // 已解密未读取的明文，写模式
+    private ByteBuffer netOut;   // 待发送的密文，写模式
+    private boolean inboundDone;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    static {
+        // 无状态会话票据：服务端无需为每个会话保留状态即可恢复
+        if (System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", "true");
+        }
+        if (System.getProperty("jdk.tls.client.enableSessionTicketExtension") == null) {
+            System.setProperty("jdk.tls.client.enableSessionTicketExtension", "true");
+        }
+    }
+
+    /** True if the server ports should accept TLS */
+    public static boolean serverEnabled() {
+        return KEYSTORE != null;
+    }
+
+    /** True if outgoing connections should use TLS */
+    public static boolean clientEnabled() {
+        return TRUSTSTORE != null;
+    }
+
+    /**
+     * Listening socket for {@code port}. When TLS is enabled it is backed by
+     * a {@link ServerSocketChannel}, so accepted sockets carry a channel for
+     * {@link #accept(Socket)}.
+     */
+    public static ServerSocket bind(int port) throws IOException {
+        if (!serverEnabled()) {
+            return new ServerSocket(port);
+        }
+        ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.bind(new InetSocketAddress(port));
+        return ssc.socket();
+    }
+
+    /** Server side: wrap an accepted socket and complete the handshake */
+    public static TlsChannel accept(Socket socket) throws IOException {
+        return accept(socket, serverContext());
+    }
+
+    /** Server side with an explicit context */
+    public static TlsChannel accept(Socket socket, SSLContext context) throws IOException {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(false);
+        TlsChannel tls = new TlsChannel(socket.getChannel(), engine);
+        tls.handshake();
+        return tls;
+    }
+
+    /** Client side: connect, verify the server certificate and complete the handshake */
+    public static TlsChannel connect(String host, int port) throws IOException {
+        return connect(clientContext(), host, port);
+    }
+
+    /** Client side with an explicit context (e.g. a fresh one to force a full handshake) */
+    public static TlsChannel connect(SSLContext context, String host, int port) throws IOException {
+        SocketChannel ch = SocketChannel.open(new InetSocketAddress(host, port));
+        // 以 host:port 作为会话缓存键，重连同一服务器时可恢复会话
+        SSLEngine engine = context.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        SSLParameters params = engine.getSSLParameters();
+        params.setEndpointIdentificationAlgorithm("HTTPS");
+        engine.setSSLParameters(params);
+        TlsChannel tls = new TlsChannel(ch, engine);
+        try {
+            tls.handshake();
+        } catch (IOException e) {
+            ch.close();
+            throw e;
+        }
+        return tls;
+    }
+
+    public static synchronized SSLContext serverContext() throws IOException {
+        if (serverContext == null) {
+            serverContext = newContext(KEYSTORE, PASSWORD, null, null);
+        }
+        return serverContext;
+    }
+
+    public static synchronized SSLContext clientContext() throws IOException {
+        if (clientContext == null) {
+            clientContext = newContext(null, null, TRUSTSTORE, TRUSTSTORE_PASSWORD);
+        }
+        return clientContext;
+    }
+
+    /** Build a context from a key store and/or trust store, with the configured session cache */
+    public static SSLContext newContext(String keyStore, String keyPassword,
+                                        String trustStore, String trustPassword) throws IOException {
+        try {
+            KeyManagerFactory kmf = null;
+            if (keyStore != null) {
+                kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                kmf.init(load(keyStore, keyPassword), keyPassword.toCharArray());
+            }
+            TrustManagerFactory tmf = null;
+            if (trustStore != null) {
+                tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                tmf.init(load(trustStore, trustPassword));
+            }
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(kmf != null ? kmf.getKeyManagers() : null, tmf != null ? tmf.getTrustManagers() : null, null);
+            ctx.getServerSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            ctx.getServerSessionContext().setSessionTimeout(SESSION_TIMEOUT_SEC);
+            ctx.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+            ctx.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SEC);
+            return ctx;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("TLS setup failed: " + e.getMessage(), e);
+        }
+    }
+
+    private static KeyStore load(String path, String password) throws IOException, GeneralSecurityException {
+        // KeyStore.getInstance(File, ...) 会按文件内容识别 PKCS12 / JKS
+        return KeyStore.getInstance(Paths.get(path).toFile(), password.toCharArray());
+    }
+
+    private TlsChannel(SocketChannel channel, SSLEngine engine) throws IOException {
+        // 每次写入都是完整的 TLS 记录，无需 Nagle 合并
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        this.channel = channel;
+        this.engine = engine;
+        // 阻塞的 SocketChannel.read 不受 SO_TIMEOUT 约束；设置了超时的连接改经套接字适配器读取，超时抛出 SocketTimeoutException
+        this.timedIn = channel.socket().getSoTimeout() > 0 ? channel.socket().getInputStream() : null;
+        SSLSession session = engine.getSession();
+        netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+        netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+        appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+    }
+
+    public SSLSession getSession() {
+        return engine.getSession();
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    private void handshake() throws IOException {
+        engine.beginHandshake();
+        SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+        while (hs != SSLEngineResult.HandshakeStatus.FINISHED
+                && hs != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+            switch (hs) {
+                case NEED_WRAP:
+                    // 同一轮的握手消息攒在一起发送，避免多次小写入触发 Nagle/延迟确认
+                    synchronized (writeLock) {
+                        hs = wrapInto(EMPTY).getHandshakeStatus();
+                        if (hs != SSLEngineResult.HandshakeStatus.NEED_WRAP
+                                && hs != SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                            flushOut();
+                        }
+                    }
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    SSLEngineResult r;
+                    synchronized (readLock) {
+                        r = unwrap();
+                    }
+                    if (r == null || r.getStatus() == SSLEngineResult.Status.CLOSED) {
+                        throw new EOFException("Connection closed during TLS handshake");
+                    }
+                    hs = r.getHandshakeStatus();
+                    break;
+                case NEED_TASK:
+                    hs = runTasks();
+                    break;
+                default:
+                    throw new SSLException("Unexpected handshake status " + hs);
+            }
+        }
+    }
+
+    private SSLEngineResult.HandshakeStatus runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+        return engine.getHandshakeStatus();
+    }
+
+    /** Unwrap one record, reading from the channel as needed; null at end of stream (read lock held) */
+    private SSLEngineResult unwrap() throws IOException {
+        while (true) {
+            netIn.flip();
+            SSLEngineResult r = engine.unwrap(netIn, appIn);
+            netIn.compact();
+            switch (r.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    if (!netIn.hasRemaining()) {
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                    }
+                    if (readNet() < 0) {
+                        return null;
+                    }
+                    break;
+                case BUFFER_OVERFLOW:
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    break;
+                default:
+                    return r;
+            }
+        }
+    }
+
+    /** Blocking read into netIn, honouring the socket's SO_TIMEOUT if one was set before the handshake */
+    private int readNet() throws IOException {
+        if (timedIn == null) {
+            return channel.read(netIn);
+        }
+        int n = timedIn.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+        if (n > 0) {
+            netIn.position(netIn.position() + n);
+        }
+        return n;
+    }
+
+    /** Wrap {@code src} into one record and send it */
+    private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+        synchronized (writeLock) {
+            SSLEngineResult r = wrapInto(src);
+            flushOut();
+            return r;
+        }
+    }
+
+    /** Append one record for {@code src} to the outgoing buffer (write lock held) */
+    private SSLEngineResult wrapInto(ByteBuffer src) throws SSLException {
+        while (true) {
+            SSLEngineResult r = engine.wrap(src, netOut);
+            if (r.getStatus() != SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                return r;
+            }
+            netOut = grow(netOut, engine.getSession().getPacketBufferSize());
+        }
+    }
+
+    /** Send everything in the outgoing buffer (write lock held) */
+    private void flushOut() throws IOException {
+        netOut.flip();
+        while (netOut.hasRemaining()) {
+            channel.write(netOut);
+        }
+        netOut.clear();
+    }
+
+    private static ByteBuffer grow(ByteBuffer buf, int extra) {
+        ByteBuffer bigger = ByteBuffer.allocate(buf.capacity() + extra);
+        buf.flip();
+        bigger.put(buf);
+        return bigger;
+    }
+
+    /** Read decrypted bytes into {@code dst}; -1 at end of stream */
+    public int read(ByteBuffer dst) throws IOException {
+        synchronized (readLock) {
+            while (appIn.position() == 0) {
+                if (inboundDone) {
+                    return -1;
+                }
+                SSLEngineResult r = unwrap();
+                if (r == null || r.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    inboundDone = true;
+                    continue;
+                }
+                // 握手后消息（会话票据、密钥更新）可能需要回应
+                SSLEngineResult.HandshakeStatus hs = r.getHandshakeStatus();
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    hs = runTasks();
+                }
+                if (hs == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    wrap(EMPTY);
+                }
+            }
+            appIn.flip();
+            int n = Math.min(appIn.remaining(), dst.remaining());
+            ByteBuffer slice = appIn.slice();
+            slice.limit(n);
+            dst.put(slice);
+            appIn.position(appIn.position() + n);
+            appIn.compact();
+            return n;
+        }
+    }
+
+    /**
+     * Process records that have already arrived, without blocking. A client
+     * that never reads (the replica push) calls this so the server's TLS 1.3
+     * session ticket is consumed and later reconnects can resume.
+     */
+    public void pollInbound() throws IOException {
+        synchronized (readLock) {
+            if (inboundDone) return;
+            channel.configureBlocking(false);
+            try {
+                while (true) {
+                    int n = channel.read(netIn);
+                    if (n < 0) {
+                        inboundDone = true;
+                        return;
+                    }
+                    while (netIn.position() > 0) {
+                        netIn.flip();
+                        SSLEngineResult r = engine.unwrap(netIn, appIn);
+                        netIn.compact();
+                        if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+                            inboundDone = true;
+                            return;
+                        }
+                        if (r.getStatus() != SSLEngineResult.Status.OK) {
+                            break;   // 记录不完整或明文缓冲已满，留待下次
+                        }
+                        if (r.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                            runTasks();
+                        }
+                    }
+                    if (n == 0) return;
+                }
+            } finally {
+                channel.configureBlocking(true);
+            }
+        }
+    }
+
+    /** Encrypt and send all of {@code src} */
+    public int write(ByteBuffer src) throws IOException {
+        int n = src.remaining();
+        while (src.hasRemaining()) {
+            SSLEngineResult r = wrap(src);
+            if (r.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("TLS connection closed");
+            }
+        }
+        return n;
+    }
+
+    public InputStream getInputStream() {
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                int n = read(one, 0, 1);
+                return n < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                return TlsChannel.this.read(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public void close() throws IOException {
+                TlsChannel.this.close();
+            }
+        };
+    }
+
+    /** Each write becomes one TLS record, so callers should write whole buffers (e.g. via PrintWriter) */
+    public OutputStream getOutputStream() {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                TlsChannel.this.write(ByteBuffer.wrap(b, off, len));
+            }
+
+            @Override
+            public void close() throws IOException {
+                TlsChannel.this.close();
+            }
+        };
+    }
+
+    /** Send close_notify and close the channel */
+    @Override
+    public void close() throws IOException {
+        try {
+            engine.closeOutbound();
+            while (!engine.isOutboundDone()) {
+                wrap(EMPTY);
+            }
+        } catch (IOException ignored) {
+            // 对端可能已断开，仍需关闭通道
+        } finally {
+            channel.close();
+        }
+    }
+}